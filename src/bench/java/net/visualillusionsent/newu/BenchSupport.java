@@ -0,0 +1,262 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.api.chat.ChatComponent;
+import net.canarymod.api.chat.ChatStyle;
+import net.canarymod.api.entity.living.humanoid.Player;
+import net.canarymod.api.factory.ChatComponentFactory;
+import net.canarymod.api.world.DimensionType;
+import net.canarymod.api.world.World;
+import net.canarymod.api.world.position.Location;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Random;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stand-ins for Canary's world, players and chat, and fixtures shared by the benchmarks
+ * <p/>
+ * Worlds and players are dynamic proxies that answer only what NewU asks of them, so no server is needed.
+ * Stations are laid out on a jittered 150 block grid, which keeps them clear of the 50 block exclusion zone.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class BenchSupport {
+    static final int STATION_SPACING = 150;
+    private static final Logger logger = Logger.getLogger("NewU-Bench");
+
+    static {
+        logger.setLevel(Level.WARNING);
+    }
+
+    private BenchSupport() {
+    }
+
+    static World world(final String name, final DimensionType type) {
+        return (World) Proxy.newProxyInstance(World.class.getClassLoader(), new Class<?>[]{ World.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String called = method.getName();
+                if (called.equals("getName")) {
+                    return name;
+                }
+                if (called.equals("getFqName")) {
+                    return name.concat("_").concat(type.getName());
+                }
+                if (called.equals("getType")) {
+                    return type;
+                }
+                return standard(proxy, method, args);
+            }
+        });
+    }
+
+    static Player player(UUID uuid, World world, double x, double y, double z) {
+        return (Player) Proxy.newProxyInstance(Player.class.getClassLoader(), new Class<?>[]{ Player.class }, new StandInPlayer(uuid, world, x, y, z));
+    }
+
+    /**
+     * Makes a chat factory whose components only hold their text, for {@link StationMessages#useChat}
+     */
+    static ChatComponentFactory chat() {
+        return (ChatComponentFactory) Proxy.newProxyInstance(ChatComponentFactory.class.getClassLoader(), new Class<?>[]{ ChatComponentFactory.class }, new StandInChat(null));
+    }
+
+    /**
+     * Moves a stand-in player
+     */
+    static void moveTo(Player player, double x, double y, double z) {
+        StandInPlayer standIn = (StandInPlayer) Proxy.getInvocationHandler(player);
+        standIn.x = x;
+        standIn.y = y;
+        standIn.z = z;
+    }
+
+    /**
+     * Side length of the square the stations are spread over
+     */
+    static int spread(int stations) {
+        return (int) Math.ceil(Math.sqrt(stations)) * STATION_SPACING;
+    }
+
+    static Location location(World world, double x, double y, double z) {
+        Location location = new Location(x, y, z);
+        location.setWorldName(world.getName());
+        location.setType(world.getType());
+        return location;
+    }
+
+    /**
+     * Makes the given number of stations in the world, each found by up to {@code discoverers} of the players
+     */
+    static NewUStation[] stations(World world, int count, int discoverers, Player[] players, Random random) {
+        NewUStation[] stations = new NewUStation[count];
+        int side = (int) Math.ceil(Math.sqrt(count));
+        for (int index = 0; index < count; index++) {
+            double x = (index % side) * STATION_SPACING + random.nextInt(80) - 40;
+            double z = (index / side) * STATION_SPACING + random.nextInt(80) - 40;
+            stations[index] = new NewUStation("station" + index, world.getName(), world.getType(), x + 0.5, 64.1, z + 0.5);
+            int found = Math.min(discoverers, players.length);
+            int first = random.nextInt(players.length);
+            for (int offset = 0; offset < found; offset++) {
+                stations[index].addDiscoverer(players[(first + offset) % players.length].getUUID());
+            }
+        }
+        return stations;
+    }
+
+    static Player[] players(World world, int count, int spread, Random random) {
+        Player[] players = new Player[count];
+        for (int index = 0; index < count; index++) {
+            players[index] = player(new UUID(random.nextLong(), random.nextLong()), world, random.nextInt(spread), 64, random.nextInt(spread));
+        }
+        return players;
+    }
+
+    /**
+     * Points NewU at a scratch config directory and starts a tracker with the world loaded
+     */
+    static StationTracker tracker(File directory, World world) {
+        NewU.cfgDir = directory;
+        NewU.cfg = new NewUConfiguration(new File(directory, "settings.cfg"), logger);
+        NewU.tracker = new StationTracker(logger, Collections.singletonList(world));
+        return NewU.tracker;
+    }
+
+    static Logger logger() {
+        return logger;
+    }
+
+    static File scratchDirectory() {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "newu-bench-" + UUID.randomUUID());
+        if (!directory.mkdirs()) {
+            throw new IllegalStateException("Could not create " + directory);
+        }
+        return directory;
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static Object standard(Object proxy, Method method, Object[] args) {
+        String called = method.getName();
+        if (called.equals("equals")) {
+            return proxy == args[0];
+        }
+        if (called.equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        }
+        if (called.equals("toString")) {
+            return "StandIn" + System.identityHashCode(proxy);
+        }
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type.isPrimitive() && type != void.class) {
+            return type == double.class ? 0D : type == float.class ? 0F : type == long.class ? 0L : type == char.class ? (Object) '\0' : (Object) 0;
+        }
+        return null;
+    }
+
+    private static final class StandInChat implements InvocationHandler {
+        private final String text;
+
+        StandInChat(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String called = method.getName();
+            if (called.equals("newChatComponent")) {
+                return Proxy.newProxyInstance(ChatComponent.class.getClassLoader(), new Class<?>[]{ ChatComponent.class }, new StandInChat((String) args[0]));
+            }
+            if (called.equals("getChatStyle")) {
+                return Proxy.newProxyInstance(ChatStyle.class.getClassLoader(), new Class<?>[]{ ChatStyle.class }, this);
+            }
+            if (called.equals("setColor")) {
+                return proxy;
+            }
+            if (called.equals("getText") || called.equals("getFullText")) {
+                return text;
+            }
+            return standard(proxy, method, args);
+        }
+    }
+
+    private static final class StandInPlayer implements InvocationHandler {
+        private final UUID uuid;
+        private final String name;
+        private final World world;
+        private volatile double x, y, z;
+
+        StandInPlayer(UUID uuid, World world, double x, double y, double z) {
+            this.uuid = uuid;
+            this.name = uuid.toString().substring(0, 16);
+            this.world = world;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String called = method.getName();
+            if (called.equals("getUUID")) {
+                return uuid;
+            }
+            if (called.equals("getName")) {
+                return name;
+            }
+            if (called.equals("getWorld")) {
+                return world;
+            }
+            if (called.equals("getX")) {
+                return x;
+            }
+            if (called.equals("getY")) {
+                return y;
+            }
+            if (called.equals("getZ")) {
+                return z;
+            }
+            if (called.equals("getLocation")) {
+                return location(world, x, y, z);
+            }
+            if (called.equals("hasPermission") || called.equals("isOnline")) {
+                return true;
+            }
+            return standard(proxy, method, args);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares a JMH JSON result against the stored baseline
+ * <p/>
+ * Usage: {@code BenchmarkRegression <result.json> <baseline.json> <tolerance percent> [update]}
+ * <p/>
+ * A benchmark regresses when its score is worse than the baseline by more than the tolerance plus the error of both runs.
+ * Benchmarks missing from either side are listed but do not fail the check.
+ * With {@code update} the result replaces the baseline instead.
+ *
+ * @author Jason (darkdiplomat)
+ */
+public final class BenchmarkRegression {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            throw new IllegalArgumentException("Usage: BenchmarkRegression <result.json> <baseline.json> <tolerance percent> [update]");
+        }
+        File result = new File(args[0]), baseline = new File(args[1]);
+        double tolerance = Double.parseDouble(args[2]) / 100;
+        if (args.length > 3 && args[3].equals("update")) {
+            record(result, baseline);
+            System.out.println("Baseline updated from " + result);
+            return;
+        }
+        if (!baseline.exists()) {
+            System.out.println("No baseline at " + baseline + ", run with update to record one");
+            return;
+        }
+        Map<String, JsonObject> current = scores(result), stored = scores(baseline);
+        int regressions = 0;
+        for (Map.Entry<String, JsonObject> entry : current.entrySet()) {
+            JsonObject before = stored.get(entry.getKey());
+            if (before == null) {
+                System.out.println("NEW        " + entry.getKey());
+                continue;
+            }
+            JsonObject after = entry.getValue();
+            double was = metric(before, "score"), now = metric(after, "score");
+            double slack = was * tolerance + error(before) + error(after);
+            // Throughput is better higher, every other mode better lower
+            boolean higherIsBetter = after.get("mode").getAsString().equals("thrpt");
+            double worse = higherIsBetter ? was - now : now - was;
+            String unit = after.getAsJsonObject("primaryMetric").get("scoreUnit").getAsString();
+            String line = String.format("%s %s: %.3f -> %.3f %s (%+.1f%%)", worse > slack ? "REGRESSION" : "ok        ", entry.getKey(), was, now, unit, (now - was) * 100 / was);
+            System.out.println(line);
+            if (worse > slack) {
+                regressions++;
+            }
+        }
+        for (String key : stored.keySet()) {
+            if (!current.containsKey(key)) {
+                System.out.println("MISSING    " + key);
+            }
+        }
+        if (regressions > 0) {
+            throw new IllegalStateException(regressions + " benchmark(s) regressed beyond " + args[2] + "% of " + baseline);
+        }
+    }
+
+    private static Map<String, JsonObject> scores(File file) throws IOException {
+        TreeMap<String, JsonObject> scores = new TreeMap<String, JsonObject>();
+        InputStreamReader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            JsonArray runs = new JsonParser().parse(reader).getAsJsonArray();
+            for (JsonElement element : runs) {
+                JsonObject run = element.getAsJsonObject();
+                StringBuilder key = new StringBuilder(run.get("benchmark").getAsString());
+                if (run.has("params")) {
+                    // Sorted so the key does not depend on the order JMH wrote them in
+                    TreeMap<String, String> params = new TreeMap<String, String>();
+                    for (Map.Entry<String, JsonElement> param : run.getAsJsonObject("params").entrySet()) {
+                        params.put(param.getKey(), param.getValue().getAsString());
+                    }
+                    key.append(params);
+                }
+                scores.put(key.toString(), run);
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return scores;
+    }
+
+    private static double metric(JsonObject run, String name) {
+        JsonElement value = run.getAsJsonObject("primaryMetric").get(name);
+        return value == null || !value.isJsonPrimitive() || !value.getAsJsonPrimitive().isNumber() ? 0 : value.getAsDouble();
+    }
+
+    private static double error(JsonObject run) {
+        double error = metric(run, "scoreError");
+        return Double.isNaN(error) ? 0 : error;
+    }
+
+    /**
+     * Stores a result as the baseline, without the per-iteration samples and machine paths that only bloat the diff
+     */
+    private static void record(File result, File baseline) throws IOException {
+        JsonArray runs;
+        InputStreamReader reader = new InputStreamReader(new FileInputStream(result), "UTF-8");
+        try {
+            runs = new JsonParser().parse(reader).getAsJsonArray();
+        }
+        finally {
+            reader.close();
+        }
+        for (JsonElement element : runs) {
+            JsonObject run = element.getAsJsonObject();
+            run.remove("jvm");
+            run.remove("jvmArgs");
+            run.remove("secondaryMetrics");
+            run.getAsJsonObject("primaryMetric").remove("rawData");
+            run.getAsJsonObject("primaryMetric").remove("rawDataHistogram");
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(baseline), "UTF-8");
+        try {
+            new GsonBuilder().setPrettyPrinting().create().toJson(runs, writer);
+            writer.write('\n');
+        }
+        finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.api.entity.living.humanoid.Player;
+import net.canarymod.api.world.DimensionType;
+import net.canarymod.api.world.World;
+import net.canarymod.api.world.position.Location;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Drives the player hooks of {@link RespawnStationListener} with stand-in players at several levels of load
+ * <p/>
+ * Usage: {@code LoadSimulator [seconds] [players...]}, by default 20 seconds each at 100, 500 and 2000 players.
+ * <p/>
+ * Canary's hook objects cannot be made without a server, so the simulator calls {@link StationHooks}, which the listener unwraps each hook into.
+ * Ticks run back to back on one thread, standing in for the server thread. Each tick every walking player moves a step,
+ * and now and then players die, respawn on the next tick, or leave and are replaced by a newcomer, at rates per minute of game time (1200 ticks).
+ * The patterns are set with system properties:
+ * <pre>
+ * sim.stations   stations in the world, default 1000
+ * sim.idle       fraction of players standing still, default 0.3
+ * sim.speed      blocks a walking player moves each tick, default 0.2
+ * sim.turn       chance each tick that a walker changes direction, default 0.05
+ * sim.deaths     deaths per player per minute, default 0.5
+ * sim.churn      disconnects per player per minute, default 0.2
+ * sim.batch      microseconds of each tick for batched discovery checks, default 0 to check on every move
+ * sim.storage    storage.backend to run on, files or h2, default files
+ * </pre>
+ * Each level warms up for a fifth of its time, then reports handler throughput and latencies, the mean tick time against the 50 ms budget,
+ * the allocation rate of the server thread and the heap growth across the measured part after a full collection.
+ * It also counts the per-player state left behind, which should track the players online, so stale sessions, pending messages or index entries show up as a leak.
+ *
+ * @author Jason (darkdiplomat)
+ */
+public final class LoadSimulator {
+    private static final int TICKS_PER_MINUTE = 1200;
+    private static final long MB = 1024 * 1024;
+
+    private final int players;
+    private final Random random = new Random(42);
+    private final int stations = Integer.getInteger("sim.stations", 1000);
+    private final double idle = Double.parseDouble(System.getProperty("sim.idle", "0.3"));
+    private final double speed = Double.parseDouble(System.getProperty("sim.speed", "0.2"));
+    private final double turn = Double.parseDouble(System.getProperty("sim.turn", "0.05"));
+    private final double deathChance = Double.parseDouble(System.getProperty("sim.deaths", "0.5")) / TICKS_PER_MINUTE;
+    private final double churnChance = Double.parseDouble(System.getProperty("sim.churn", "0.2")) / TICKS_PER_MINUTE;
+    private final int batchBudget = Integer.getInteger("sim.batch", 0);
+    private final String storage = System.getProperty("sim.storage", "files");
+
+    private LatencyTimer joinTimer, moveTimer, respawningTimer, respawnedTimer, disconnectTimer, batchTimer;
+    private World world;
+    private StationHooks hooks;
+    private Player[] online;
+    private double[] x, z, heading;
+    private boolean[] walking, dead;
+    private int spread;
+
+    private LoadSimulator(int players) {
+        this.players = players;
+    }
+
+    public static void main(String[] args) {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 20;
+        int[] levels = { 100, 500, 2000 };
+        if (args.length > 1) {
+            levels = new int[args.length - 1];
+            for (int index = 1; index < args.length; index++) {
+                levels[index - 1] = Integer.parseInt(args[index]);
+            }
+        }
+        for (int players : levels) {
+            new LoadSimulator(players).run(seconds * 1000);
+        }
+    }
+
+    private void run(long millis) {
+        File directory = BenchSupport.scratchDirectory();
+        try {
+            world = BenchSupport.world("sim", DimensionType.NORMAL);
+            settings(directory);
+            StationTracker tracker = BenchSupport.tracker(directory, world);
+            if (!tracker.storageName().equals(storage)) {
+                throw new IllegalStateException("Running on " + tracker.storageName() + " storage instead of " + storage);
+            }
+            tracker.messages().useChat(BenchSupport.chat());
+            spread = BenchSupport.spread(stations);
+            for (NewUStation station : BenchSupport.stations(world, stations, 0, new Player[]{ join(0) }, random)) {
+                tracker.addStation(station);
+            }
+            hooks = new StationHooks();
+            reset();
+            online = new Player[players];
+            x = new double[players];
+            z = new double[players];
+            heading = new double[players];
+            walking = new boolean[players];
+            dead = new boolean[players];
+            for (int index = 0; index < players; index++) {
+                online[index] = join(index);
+                hooks.joined(online[index]);
+            }
+
+            long warmup = millis / 5;
+            long end = System.currentTimeMillis() + warmup;
+            while (System.currentTimeMillis() < end) {
+                tick();
+            }
+            reset();
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            long heapBefore = settledHeap(memory);
+            long allocatedBefore = allocatedBytes();
+            long ticks = 0, start = System.nanoTime();
+            end = System.currentTimeMillis() + millis - warmup;
+            while (System.currentTimeMillis() < end) {
+                tick();
+                ticks++;
+            }
+            long elapsed = System.nanoTime() - start;
+            long allocated = allocatedBytes() - allocatedBefore;
+            long heapAfter = settledHeap(memory);
+
+            double secondsRun = elapsed / 1e9;
+            System.out.println(String.format("%d players, %d stations on %s storage, %d ticks, %.3f ms per tick (%.1f%% of a 50 ms tick)",
+                    players, stations, storage, ticks, elapsed / 1e6 / ticks, elapsed / 1e6 / ticks / 50 * 100));
+            report(joinTimer, secondsRun);
+            report(moveTimer, secondsRun);
+            report(respawningTimer, secondsRun);
+            report(respawnedTimer, secondsRun);
+            report(disconnectTimer, secondsRun);
+            if (NewU.discoveryScheduler != null) {
+                report(batchTimer, secondsRun);
+            }
+            System.out.println(String.format("  allocation %s, heap growth %.1f MB",
+                    allocated < 0 ? "unavailable" : String.format("%.1f MB/s", allocated / (double) MB / secondsRun), (heapAfter - heapBefore) / (double) MB));
+            int deadNow = 0;
+            for (boolean gone : dead) {
+                deadNow += gone ? 1 : 0;
+            }
+            System.out.println(String.format("  left behind: %d sessions, %d with pending messages (%d players mid-respawn), %d discovery index entries, for %d players online",
+                    hooks.sessions().size(), hooks.sessions().pending(), deadNow, tracker.indexedPlayers(), players));
+            if (NewU.discoveryScheduler != null) {
+                System.out.println("  " + NewU.discoveryScheduler.backlog() + " players waiting for a batched check");
+            }
+            if (tracker.discoveriesLoading() > 0) {
+                System.out.println("  " + tracker.discoveriesLoading() + " players waiting on storage for their discoveries");
+            }
+            tracker.shutdown();
+        }
+        finally {
+            NewU.discoveryScheduler = null;
+            BenchSupport.delete(directory);
+        }
+    }
+
+    /**
+     * Picks the storage, and turns on batched discovery checks if asked, run by the simulated server thread at the end of each tick
+     */
+    private void settings(File directory) {
+        try {
+            FileWriter writer = new FileWriter(new File(directory, "settings.cfg"));
+            try {
+                writer.write("storage.backend=" + storage + "\n");
+                if (batchBudget > 0) {
+                    writer.write("discovery.batch=true\ndiscovery.budget=" + batchBudget + "\n");
+                }
+            }
+            finally {
+                writer.close();
+            }
+        }
+        catch (IOException ioex) {
+            throw new IllegalStateException("Failed to write the simulation settings", ioex);
+        }
+        if (batchBudget > 0) {
+            NewU.discoveryScheduler = new DiscoveryScheduler(null);
+        }
+    }
+
+    private Player join(int index) {
+        if (x != null) {
+            x[index] = random.nextInt(spread);
+            z[index] = random.nextInt(spread);
+            heading[index] = random.nextDouble() * Math.PI * 2;
+            walking[index] = random.nextDouble() >= idle;
+            dead[index] = false;
+        }
+        return BenchSupport.player(new UUID(random.nextLong(), random.nextLong()), world, x != null ? x[index] : 0, 64, x != null ? z[index] : 0);
+    }
+
+    private void tick() {
+        for (int index = 0; index < players; index++) {
+            Player player = online[index];
+            if (random.nextDouble() < churnChance) {
+                long begin = System.nanoTime();
+                hooks.disconnected(player.getUUID());
+                disconnectTimer.stop(begin);
+                online[index] = join(index);
+                begin = System.nanoTime();
+                hooks.joined(online[index]);
+                joinTimer.stop(begin);
+                continue;
+            }
+            if (dead[index]) {
+                // Back in the world the tick after dying
+                long begin = System.nanoTime();
+                hooks.respawned(player);
+                respawnedTimer.stop(begin);
+                dead[index] = false;
+                continue;
+            }
+            if (random.nextDouble() < deathChance) {
+                long begin = System.nanoTime();
+                Location respawn = hooks.respawning(player);
+                respawningTimer.stop(begin);
+                if (respawn != null) {
+                    x[index] = respawn.getX();
+                    z[index] = respawn.getZ();
+                    BenchSupport.moveTo(player, x[index], 64, z[index]);
+                }
+                dead[index] = true;
+                continue;
+            }
+            if (walking[index]) {
+                step(index);
+                long begin = System.nanoTime();
+                hooks.moved(player, x[index], 64, z[index]);
+                moveTimer.stop(begin);
+            }
+        }
+        if (NewU.discoveryScheduler != null) {
+            long begin = System.nanoTime();
+            NewU.discoveryScheduler.run();
+            batchTimer.stop(begin);
+        }
+    }
+
+    private void step(int index) {
+        if (random.nextDouble() < turn) {
+            heading[index] = random.nextDouble() * Math.PI * 2;
+        }
+        double nextX = x[index] + Math.cos(heading[index]) * speed, nextZ = z[index] + Math.sin(heading[index]) * speed;
+        if (nextX < 0 || nextX > spread || nextZ < 0 || nextZ > spread) {
+            heading[index] += Math.PI; // Turn back at the edge of the map
+            return;
+        }
+        x[index] = nextX;
+        z[index] = nextZ;
+        BenchSupport.moveTo(online[index], nextX, 64, nextZ);
+    }
+
+    private void reset() {
+        joinTimer = new LatencyTimer("joined");
+        moveTimer = new LatencyTimer("nearStation");
+        respawningTimer = new LatencyTimer("respawn");
+        respawnedTimer = new LatencyTimer("respawned");
+        disconnectTimer = new LatencyTimer("disconnected");
+        batchTimer = new LatencyTimer("batch");
+    }
+
+    private static void report(LatencyTimer timer, double seconds) {
+        TimerSnapshot snapshot = timer.snapshot();
+        System.out.println(String.format("  %-12s %10.0f calls/s   p50 %6.2f us   p99 %7.2f us   max %8.2f us",
+                snapshot.getName(), snapshot.getCount() / seconds, snapshot.getP50Nanos() / 1e3, snapshot.getP99Nanos() / 1e3, snapshot.getMaxNanos() / 1e3));
+    }
+
+    private static long settledHeap(MemoryMXBean memory) {
+        System.gc();
+        System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Bytes allocated so far by this thread, or -1 where the JVM does not count them
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+            if (counting.isThreadAllocatedMemorySupported() && counting.isThreadAllocatedMemoryEnabled()) {
+                return counting.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.api.entity.living.humanoid.Player;
+import net.canarymod.api.world.DimensionType;
+import net.canarymod.api.world.World;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-move work behind {@link RespawnStationListener#nearStation}, fed by players walking about
+ * <p/>
+ * Each player takes walking-speed steps of about 0.2 blocks per move and turns now and then,
+ * so most moves stay in the same block and only a few run the station check.
+ *
+ * @author Jason (darkdiplomat)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MoveBenchmark {
+    private static final double STEP = 0.2;
+
+    @Param({ "100", "1000", "10000" })
+    public int stations;
+    @Param({ "0", "16", "256" })
+    public int discoverers;
+    @Param({ "16", "1024" })
+    public int players;
+
+    private File directory;
+    private World world;
+    private StationTracker tracker;
+    private PlayerSessions sessions;
+    private Player[] online;
+    private double[] headings;
+    private Random random;
+    private int spread, next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        random = new Random(42);
+        directory = BenchSupport.scratchDirectory();
+        world = BenchSupport.world("bench", DimensionType.NORMAL);
+        tracker = BenchSupport.tracker(directory, world);
+        spread = BenchSupport.spread(stations);
+        online = BenchSupport.players(world, players, spread, random);
+        for (NewUStation station : BenchSupport.stations(world, stations, discoverers, online, random)) {
+            tracker.addStation(station);
+        }
+        sessions = new PlayerSessions();
+        headings = new double[players];
+        for (int index = 0; index < players; index++) {
+            headings[index] = random.nextDouble() * Math.PI * 2;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tracker.shutdown();
+        BenchSupport.delete(directory);
+    }
+
+    @Benchmark
+    public NewUStation move() {
+        int index = next++ % online.length;
+        Player player = online[index];
+        if ((next & 63) == 0) {
+            headings[index] += random.nextGaussian();
+        }
+        double x = player.getX() + Math.cos(headings[index]) * STEP, z = player.getZ() + Math.sin(headings[index]) * STEP;
+        if (x < 0 || z < 0 || x > spread || z > spread) {
+            headings[index] += Math.PI; // Turn back at the edge of the stations
+        }
+        BenchSupport.moveTo(player, x, 64, z);
+        return sessions.moved(player, world, x, 64, z);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.api.world.DimensionType;
+import net.canarymod.api.world.position.Location;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hammers one {@link StationPartition} with concurrent readers and writers and checks every snapshot the readers see
+ * <p/>
+ * Usage: {@code RegistryStress [seconds] [readers] [writers]}
+ * <p/>
+ * Writers add and remove stations from a small pool of names in a small area, so names and spacing are contended.
+ * Readers check that each snapshot's name map and grid agree, that no two stations break the exclusion distance,
+ * and that versions never go backwards.
+ * At the end the adds that succeeded, less the removes, must match what is left.
+ *
+ * @author Jason (darkdiplomat)
+ */
+public final class RegistryStress {
+    private static final double EXCLUSION = 50;
+    private static final int NAMES = 2000, AREA = 2000;
+
+    public static void main(String[] args) throws InterruptedException {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 10;
+        int readers = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int writers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        final StationPartition partition = new StationPartition(new PartitionKey("stress", DimensionType.NORMAL), new File(System.getProperty("java.io.tmpdir")));
+        partition.setLoaded();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final AtomicLong adds = new AtomicLong(), removes = new AtomicLong(), rejects = new AtomicLong(), reads = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(readers + writers);
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int index = 0; index < writers; index++) {
+            final Random random = new Random(index);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (running.get() && failure.get() == null) {
+                            String name = "station" + random.nextInt(NAMES);
+                            if (random.nextInt(3) == 0) {
+                                if (partition.remove(name) != null) {
+                                    removes.incrementAndGet();
+                                }
+                            }
+                            else if (partition.add(new NewUStation(name, "stress", DimensionType.NORMAL, random.nextInt(AREA) + 0.5, 64.1, random.nextInt(AREA) + 0.5), EXCLUSION)) {
+                                adds.incrementAndGet();
+                            }
+                            else {
+                                rejects.incrementAndGet();
+                            }
+                        }
+                    }
+                    catch (RuntimeException rex) {
+                        failure.compareAndSet(null, "Writer failed: " + rex);
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            }, "Writer-" + index));
+        }
+        for (int index = 0; index < readers; index++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long lastVersion = -1;
+                        while (running.get() && failure.get() == null) {
+                            StationRegistry registry = partition.registry();
+                            if (registry.version() < lastVersion) {
+                                failure.compareAndSet(null, "Version went back from " + lastVersion + " to " + registry.version());
+                            }
+                            lastVersion = registry.version();
+                            String problem = check(registry);
+                            if (problem != null) {
+                                failure.compareAndSet(null, problem);
+                            }
+                            reads.incrementAndGet();
+                        }
+                    }
+                    catch (RuntimeException rex) {
+                        failure.compareAndSet(null, "Reader failed: " + rex);
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            }, "Reader-" + index));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(seconds * 1000);
+        running.set(false);
+        done.await();
+
+        StationRegistry last = partition.registry();
+        String problem = failure.get();
+        if (problem == null) {
+            problem = check(last);
+        }
+        if (problem == null && adds.get() - removes.get() != last.size()) {
+            problem = adds.get() + " adds less " + removes.get() + " removes left " + last.size() + " stations";
+        }
+        System.out.println(String.format("%d snapshot checks, %d adds, %d removes, %d rejected adds, %d stations at version %d",
+                reads.get(), adds.get(), removes.get(), rejects.get(), last.size(), last.version()));
+        if (problem != null) {
+            throw new IllegalStateException(problem);
+        }
+    }
+
+    /**
+     * Checks one snapshot is consistent
+     *
+     * @return what is wrong with it, or {@code null}
+     */
+    private static String check(StationRegistry registry) {
+        List<NewUStation> gridded = new ArrayList<NewUStation>();
+        registry.within(AREA / 2, 64, AREA / 2, AREA * 2, null, gridded);
+        if (gridded.size() != registry.size() || registry.stations().size() != registry.size()) {
+            return "Grid holds " + gridded.size() + " stations but the names " + registry.size();
+        }
+        for (final NewUStation station : registry.stations()) {
+            if (registry.get(station.getName()) != station) {
+                return "Station " + station.getName() + " is not found by its name";
+            }
+            Location loc = station.getStationLocation();
+            NewUStation crowding = registry.nearest(loc.getX(), loc.getY(), loc.getZ(), EXCLUSION - 0.001, new StationGrid.Filter() {
+                @Override
+                public boolean accept(NewUStation other) {
+                    return other != station;
+                }
+            });
+            if (crowding != null) {
+                return "Stations " + station.getName() + " and " + crowding.getName() + " are closer than " + EXCLUSION;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.api.entity.living.humanoid.Player;
+import net.canarymod.api.world.DimensionType;
+import net.canarymod.api.world.World;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing a world's stations to a snapshot and reading them back, in each format
+ *
+ * @author Jason (darkdiplomat)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotBenchmark {
+
+    @Param({ "100", "1000", "10000" })
+    public int stations;
+    @Param({ "0", "16", "256" })
+    public int discoverers;
+    @Param({ "16", "1024" })
+    public int players;
+    @Param({ "json", "binary" })
+    public String format;
+
+    private File directory;
+    private StationPersistence persistence;
+    private StationPartition partition;
+    private SnapshotFormat snapshotFormat;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        directory = BenchSupport.scratchDirectory();
+        World world = BenchSupport.world("bench", DimensionType.NORMAL);
+        Player[] online = BenchSupport.players(world, players, BenchSupport.spread(stations), random);
+        snapshotFormat = StationTracker.snapshotFormat(format);
+        persistence = new StationPersistence(null, snapshotFormat, directory, BenchSupport.logger());
+        partition = new StationPartition(new PartitionKey(world.getName(), world.getType()), directory);
+        for (NewUStation station : BenchSupport.stations(world, stations, discoverers, online, random)) {
+            partition.restoreStation(station);
+        }
+        partition.setLoaded();
+        persistence.store(partition, snapshotFormat, 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchSupport.delete(directory);
+    }
+
+    @Benchmark
+    public boolean store() {
+        return persistence.store(partition, snapshotFormat, 1);
+    }
+
+    @Benchmark
+    public StationPartition load() {
+        StationPartition loaded = new StationPartition(partition.getKey(), directory);
+        persistence.load(loaded);
+        return loaded;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.api.entity.living.humanoid.Player;
+import net.canarymod.api.world.DimensionType;
+import net.canarymod.api.world.World;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A returning player's discoveries coming in from each storage backend
+ * <p/>
+ * Each call has a player who discovered {@code found} stations leave and join again, and waits until the hooks take them back.
+ * With h2 that is a read of the discoveries table on the storage thread, while the join hook itself only queues it. With files there is nothing to read.
+ * <p/>
+ * The h2 trials need H2 on the classpath, as it is in the benchmarks profile, and fail rather than measure files instead.
+ *
+ * @author Jason (darkdiplomat)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StorageBenchmark {
+    private static final int STATIONS = 1000, PLAYERS = 64;
+
+    @Param({ "files", "h2" })
+    public String backend;
+    @Param({ "16", "256" })
+    public int found;
+
+    private File directory;
+    private StationTracker tracker;
+    private StationHooks hooks;
+    private Player[] online;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        directory = BenchSupport.scratchDirectory();
+        FileWriter writer = new FileWriter(new File(directory, "settings.cfg"));
+        try {
+            writer.write("storage.backend=" + backend + "\n");
+        }
+        finally {
+            writer.close();
+        }
+        World world = BenchSupport.world("bench", DimensionType.NORMAL);
+        tracker = BenchSupport.tracker(directory, world);
+        if (!tracker.storageName().equals(backend)) {
+            throw new IllegalStateException("Running on " + tracker.storageName() + " storage instead of " + backend);
+        }
+        online = BenchSupport.players(world, PLAYERS, BenchSupport.spread(STATIONS), random);
+        NewUStation[] stations = BenchSupport.stations(world, STATIONS, 0, online, random);
+        for (NewUStation station : stations) {
+            tracker.addStation(station);
+        }
+        for (Player player : online) {
+            int first = random.nextInt(STATIONS);
+            for (int offset = 0; offset < found; offset++) {
+                tracker.replicaDiscovered(stations[(first + offset) % STATIONS].getName(), player.getUUID());
+            }
+        }
+        hooks = new StationHooks();
+        while (tracker.backlog() > 0) {
+            // Let the discoveries reach the database before timing reads of them
+            try {
+                Thread.sleep(50);
+            }
+            catch (InterruptedException iex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tracker.shutdown();
+        BenchSupport.delete(directory);
+    }
+
+    @Benchmark
+    public boolean rejoin() {
+        Player player = online[next++ % PLAYERS];
+        hooks.disconnected(player.getUUID());
+        hooks.joined(player);
+        while (!tracker.discoveriesReady(player)) {
+            Thread.yield();
+        }
+        return true;
+    }
+}
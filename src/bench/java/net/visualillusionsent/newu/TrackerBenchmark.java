@@ -0,0 +1,131 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.api.entity.living.humanoid.Player;
+import net.canarymod.api.world.DimensionType;
+import net.canarymod.api.world.World;
+import net.canarymod.api.world.position.Location;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Station lookups and the add path of {@link StationTracker}
+ *
+ * @author Jason (darkdiplomat)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrackerBenchmark {
+    private static final int POINTS = 4096;
+
+    @Param({ "100", "1000", "10000" })
+    public int stations;
+    @Param({ "0", "16", "256" })
+    public int discoverers;
+    @Param({ "16", "1024" })
+    public int players;
+
+    private File directory;
+    private World world;
+    private StationTracker tracker;
+    private Player[] online;
+    private NewUStation[] all;
+    private double[] points;
+    private int next, added;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        directory = BenchSupport.scratchDirectory();
+        world = BenchSupport.world("bench", DimensionType.NORMAL);
+        tracker = BenchSupport.tracker(directory, world);
+        int spread = BenchSupport.spread(stations);
+        online = BenchSupport.players(world, players, spread, random);
+        all = BenchSupport.stations(world, stations, discoverers, online, random);
+        for (NewUStation station : all) {
+            tracker.addStation(station);
+        }
+        points = new double[POINTS * 3];
+        for (int index = 0; index < POINTS; index++) {
+            points[index * 3] = random.nextInt(spread);
+            points[index * 3 + 1] = 64;
+            points[index * 3 + 2] = random.nextInt(spread);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tracker.shutdown();
+        BenchSupport.delete(directory);
+    }
+
+    @Benchmark
+    public NewUStation closestStation() {
+        int point = (next++ & (POINTS - 1)) * 3;
+        return tracker.getClosestStation(world, points[point], points[point + 1], points[point + 2]);
+    }
+
+    /**
+     * The linear scan over every station that the grid replaced, over the same stations and points as {@link #closestStation()}
+     */
+    @Benchmark
+    public NewUStation closestStationScan() {
+        int point = (next++ & (POINTS - 1)) * 3;
+        Location at = new Location(points[point], points[point + 1], points[point + 2]);
+        double distance = -1;
+        NewUStation closest = null;
+        for (NewUStation station : all) {
+            Location loc = station.getStationLocation();
+            double dist = !world.getName().equals(loc.getWorldName()) || world.getType() != loc.getType() ? Double.MAX_VALUE : at.getDistance(loc);
+            if (distance == -1 || dist < distance) {
+                distance = dist;
+                closest = station;
+            }
+        }
+        if (closest != null && distance > NewU.cfg.settings().discoveryRadius) {
+            return null;
+        }
+        return closest;
+    }
+
+    @Benchmark
+    public Location closestRespawn() {
+        return tracker.getClosestRespawn(online[next++ % online.length]);
+    }
+
+    /**
+     * Tries a station at a random point, which the exclusion check turns down more often the denser the world
+     */
+    @Benchmark
+    public boolean addStation() {
+        int point = (next++ & (POINTS - 1)) * 3;
+        String name = "added" + added++;
+        if (tracker.addStation(new NewUStation(name, world.getName(), world.getType(), points[point], points[point + 1], points[point + 2]))) {
+            return tracker.removeStation(name);
+        }
+        return false;
+    }
+}
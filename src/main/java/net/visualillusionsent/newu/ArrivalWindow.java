@@ -0,0 +1,61 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+/**
+ * Respawns at one {@link NewUStation} over the last minute, counted in one second buckets
+ * <p/>
+ * Buckets are reused round robin and remember which second they hold, so stale counts are skipped instead of cleared.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class ArrivalWindow {
+    static final int MAX_SECONDS = 60;
+
+    private final int[] counts = new int[MAX_SECONDS];
+    private final long[] seconds = new long[MAX_SECONDS];
+
+    /**
+     * Counts an arrival in the given second
+     */
+    final synchronized void record(long second) {
+        int bucket = (int) (second % MAX_SECONDS);
+        if (seconds[bucket] != second) {
+            seconds[bucket] = second;
+            counts[bucket] = 0;
+        }
+        counts[bucket]++;
+    }
+
+    /**
+     * Gets the arrivals in the given second and the ones before it
+     *
+     * @param window
+     *         the number of seconds to look at, up to {@link #MAX_SECONDS}
+     */
+    final synchronized int recent(long second, int window) {
+        int total = 0;
+        for (long past = second - Math.min(window, MAX_SECONDS) + 1; past <= second; past++) {
+            int bucket = (int) (past % MAX_SECONDS);
+            if (seconds[bucket] == past) {
+                total += counts[bucket];
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Short lived cache of player balances read from the economy plugin
+ * <p/>
+ * Entries expire after the configured time, and are dropped as soon as NewU itself moves money or the player leaves.
+ * Balances are tied to the world they were read in, as Craftconomy keeps one per world.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class BalanceCache {
+    private final ConcurrentHashMap<UUID, Entry> entries = new ConcurrentHashMap<UUID, Entry>();
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    /**
+     * Gets a cached balance
+     *
+     * @return the balance or {@link Double#NaN} if there is no fresh entry for that world
+     */
+    final double get(UUID uuid, String world) {
+        Entry entry = entries.get(uuid);
+        if (entry != null && entry.world.equals(world) && entry.expires - System.nanoTime() > 0) {
+            hits.incrementAndGet();
+            return entry.balance;
+        }
+        misses.incrementAndGet();
+        return Double.NaN;
+    }
+
+    final void put(UUID uuid, String world, double balance, long ttlMillis) {
+        if (ttlMillis > 0) {
+            entries.put(uuid, new Entry(world, balance, System.nanoTime() + ttlMillis * 1000000L));
+        }
+    }
+
+    final void invalidate(UUID uuid) {
+        entries.remove(uuid);
+    }
+
+    /** Lookups answered without asking the economy plugin */
+    final long hits() {
+        return hits.get();
+    }
+
+    /** Lookups that had to go to the economy plugin */
+    final long misses() {
+        return misses.get();
+    }
+
+    private static final class Entry {
+        private final String world;
+        private final double balance;
+        private final long expires;
+
+        Entry(String world, double balance, long expires) {
+            this.world = world;
+            this.balance = balance;
+            this.expires = expires;
+        }
+    }
+}
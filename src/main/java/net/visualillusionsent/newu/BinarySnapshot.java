@@ -0,0 +1,256 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.api.world.DimensionType;
+import net.canarymod.api.world.position.Location;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The stations.dat snapshot format, read whole into one buffer
+ * <p/>
+ * The file is not memory mapped, a mapping lives until it is collected and on Windows keeps the next snapshot from being renamed over it.
+ * <p/>
+ * Layout, big-endian:
+ * <pre>
+ * header      int magic 'NEWU', short version, short flags, int generation,
+ *             int strings, int uuids, int stations, int entries
+ * strings     per string: unsigned short byte length, UTF-8 bytes (names, worlds, dimensions, legacy discoverers)
+ * uuids       per uuid: long most significant bits, long least significant bits
+ * stations    per station, 44 bytes: int name, int world, int dimension, double x, double y, double z, int first entry, int entry count
+ * entries     per discoverer: int, a uuid index when positive or zero, otherwise -(string index + 1) for a legacy name
+ * </pre>
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class BinarySnapshot implements SnapshotFormat {
+    private static final int MAGIC = 0x4E455755; // NEWU
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 28;
+    private static final int STATION_SIZE = 44;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Override
+    public final String extension() {
+        return ".dat";
+    }
+
+    @Override
+    public final int read(File file, StationSink sink) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ByteBuffer buffer;
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file.getName() + " is too large");
+            }
+            buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException(file.getName() + " is truncated");
+                }
+            }
+            buffer.flip();
+        }
+        finally {
+            raf.close();
+        }
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException(file.getName() + " is not a NewU snapshot");
+        }
+        short version = buffer.getShort();
+        if (version != VERSION) {
+            throw new IOException(file.getName() + " has unsupported version " + version);
+        }
+        buffer.getShort(); // Flags, none yet
+        int generation = buffer.getInt();
+        String[] strings = new String[buffer.getInt()];
+        int[] uuids = new int[buffer.getInt()];
+        int stationCount = buffer.getInt();
+        int entryCount = buffer.getInt();
+
+        byte[] scratch = new byte[256];
+        for (int index = 0; index < strings.length; index++) {
+            int length = buffer.getShort() & 0xFFFF;
+            if (length > scratch.length) {
+                scratch = new byte[length];
+            }
+            buffer.get(scratch, 0, length);
+            strings[index] = new String(scratch, 0, length, UTF8);
+        }
+        for (int index = 0; index < uuids.length; index++) {
+            uuids[index] = PlayerIds.intern(new UUID(buffer.getLong(), buffer.getLong()));
+        }
+        HashMap<String, DimensionType> dimensions = new HashMap<String, DimensionType>();
+        ByteBuffer entries = buffer.duplicate();
+        entries.position(buffer.position() + stationCount * STATION_SIZE);
+        if (entries.remaining() < entryCount * 4) {
+            throw new IOException(file.getName() + " is truncated");
+        }
+        int entriesStart = entries.position();
+
+        for (int index = 0; index < stationCount; index++) {
+            String name = strings[buffer.getInt()];
+            String world = strings[buffer.getInt()];
+            String dimensionName = strings[buffer.getInt()];
+            DimensionType dimension = dimensions.get(dimensionName);
+            if (dimension == null) {
+                dimension = DimensionType.fromName(dimensionName);
+                if (dimension == null) {
+                    throw new IOException(file.getName() + " has station " + name + " in unknown dimension " + dimensionName);
+                }
+                dimensions.put(dimensionName, dimension);
+            }
+            NewUStation station = new NewUStation(name, world, dimension, buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+            int first = buffer.getInt();
+            int count = buffer.getInt();
+            int[] ids = new int[count];
+            int idCount = 0;
+            entries.position(entriesStart + first * 4);
+            for (int entry = 0; entry < count; entry++) {
+                int value = entries.getInt();
+                if (value >= 0) {
+                    ids[idCount++] = uuids[value];
+                }
+                else {
+                    station.addLegacyDiscoverer(strings[-(value + 1)]);
+                }
+            }
+            if (idCount < count) {
+                int[] trimmed = new int[idCount];
+                System.arraycopy(ids, 0, trimmed, 0, idCount);
+                ids = trimmed;
+            }
+            station.addDiscoverers(ids);
+            sink.restoreStation(station);
+        }
+        return generation;
+    }
+
+    @Override
+    public final void write(OutputStream out, Collection<NewUStation> stations, int generation) throws IOException {
+        // Take each station's discoverers once so the tables and records agree
+        List<NewUStation> snapshot = new ArrayList<NewUStation>(stations);
+        int[][] ids = new int[snapshot.size()][];
+        String[][] legacy = new String[snapshot.size()][];
+        Table strings = new Table();
+        Table uuids = new Table();
+        int entries = 0;
+        for (int index = 0; index < snapshot.size(); index++) {
+            NewUStation station = snapshot.get(index);
+            Location loc = station.getStationLocation();
+            strings.index(station.getName());
+            strings.index(loc.getWorldName());
+            strings.index(loc.getType().getName());
+            ids[index] = station.discovererIds();
+            legacy[index] = station.legacyDiscoverers();
+            for (int id : ids[index]) {
+                uuids.index(PlayerIds.uuidOf(id));
+            }
+            for (String name : legacy[index]) {
+                strings.index(name);
+            }
+            entries += ids[index].length + legacy[index].length;
+        }
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 65536));
+        data.writeInt(MAGIC);
+        data.writeShort(VERSION);
+        data.writeShort(0);
+        data.writeInt(generation);
+        data.writeInt(strings.size());
+        data.writeInt(uuids.size());
+        data.writeInt(snapshot.size());
+        data.writeInt(entries);
+        for (Object string : strings.values()) {
+            byte[] bytes = ((String) string).getBytes(UTF8);
+            if (bytes.length > 0xFFFF) {
+                throw new IOException("String too long for binary snapshot");
+            }
+            data.writeShort(bytes.length);
+            data.write(bytes);
+        }
+        for (Object uuid : uuids.values()) {
+            data.writeLong(((UUID) uuid).getMostSignificantBits());
+            data.writeLong(((UUID) uuid).getLeastSignificantBits());
+        }
+        int first = 0;
+        for (int index = 0; index < snapshot.size(); index++) {
+            NewUStation station = snapshot.get(index);
+            Location loc = station.getStationLocation();
+            int count = ids[index].length + legacy[index].length;
+            data.writeInt(strings.index(station.getName()));
+            data.writeInt(strings.index(loc.getWorldName()));
+            data.writeInt(strings.index(loc.getType().getName()));
+            data.writeDouble(loc.getX());
+            data.writeDouble(loc.getY());
+            data.writeDouble(loc.getZ());
+            data.writeInt(first);
+            data.writeInt(count);
+            first += count;
+        }
+        for (int index = 0; index < snapshot.size(); index++) {
+            for (int id : ids[index]) {
+                data.writeInt(uuids.index(PlayerIds.uuidOf(id)));
+            }
+            for (String name : legacy[index]) {
+                data.writeInt(-(strings.index(name) + 1));
+            }
+        }
+        data.flush();
+    }
+
+    /** Assigns indexes to values in the order they are first seen */
+    private static final class Table {
+        private final HashMap<Object, Integer> indexes = new HashMap<Object, Integer>();
+        private final ArrayList<Object> values = new ArrayList<Object>();
+
+        final int index(Object value) {
+            Integer index = indexes.get(value);
+            if (index == null) {
+                index = values.size();
+                indexes.put(value, index);
+                values.add(value);
+            }
+            return index;
+        }
+
+        final int size() {
+            return values.size();
+        }
+
+        final List<Object> values() {
+            return values;
+        }
+    }
+}
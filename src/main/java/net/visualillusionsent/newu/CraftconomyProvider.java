@@ -0,0 +1,70 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import com.greatmancode.craftconomy3.Cause;
+import com.greatmancode.craftconomy3.Common;
+import com.greatmancode.craftconomy3.account.Account;
+import com.greatmancode.craftconomy3.account.AccountManager;
+
+import java.util.UUID;
+
+/**
+ * Charges fees from Craftconomy accounts in the default currency
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class CraftconomyProvider extends EconomyProvider {
+
+    @Override
+    final String getName() {
+        return "craftconomy";
+    }
+
+    @Override
+    final double balance(UUID uuid, String name, String world) {
+        Account pAcc = account(name);
+        return pAcc != null ? pAcc.getBalance(world, currency()) : 0;
+    }
+
+    @Override
+    final boolean canDebit(UUID uuid, String name, String worldFqName, double amount) {
+        Account pAcc = account(name);
+        return pAcc != null && pAcc.hasEnough(amount, worldFqName, currency());
+    }
+
+    @Override
+    final boolean debit(UUID uuid, String name, String worldFqName, double amount) {
+        Account pAcc = account(name);
+        String currency = currency();
+        if (pAcc != null && pAcc.hasEnough(amount, worldFqName, currency)) {
+            pAcc.withdraw(amount, worldFqName, currency, Cause.PLUGIN, "NewU Respawn Fee");
+            return true;
+        }
+        return false;
+    }
+
+    private Account account(String name) {
+        AccountManager accountManager = Common.getInstance().getAccountManager();
+        return accountManager.exist(name) ? accountManager.getAccount(name) : null;
+    }
+
+    private String currency() {
+        return Common.getInstance().getCurrencyManager().getDefaultCurrency().getName();
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.visualillusionsent.dconomy.accounting.AccountNotFoundException;
+import net.visualillusionsent.dconomy.accounting.AccountingException;
+import net.visualillusionsent.dconomy.api.InvalidPluginException;
+
+import java.util.UUID;
+
+import static net.visualillusionsent.dconomy.api.account.wallet.WalletAPIListener.*;
+
+/**
+ * Charges fees from dConomy wallets, which are not per world
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class DConomyProvider extends EconomyProvider {
+
+    @Override
+    final String getName() {
+        return "dconomy";
+    }
+
+    @Override
+    final double balance(UUID uuid, String name, String world) {
+        try {
+            return walletBalance(uuid, false);
+        }
+        catch (AccountingException e) {
+            // Ignored
+        }
+        catch (AccountNotFoundException e) {
+            // Ignored
+        }
+        return 0;
+    }
+
+    @Override
+    final boolean canDebit(UUID uuid, String name, String worldFqName, double amount) {
+        try {
+            testWalletDebit(uuid, amount);
+            return true;
+        }
+        catch (AccountingException aex) {
+            // Ignored
+        }
+        catch (AccountNotFoundException anfex) {
+            // Ignored
+        }
+        return false;
+    }
+
+    @Override
+    final boolean debit(UUID uuid, String name, String worldFqName, double amount) {
+        try {
+            testWalletDebit(uuid, amount);
+            walletDebit("NewU", name, amount, false);
+            return true;
+        }
+        catch (AccountingException aex) {
+            // Ignored
+        }
+        catch (AccountNotFoundException anfex) {
+            // Ignored
+        }
+        catch (InvalidPluginException e) {
+            // Ignored
+        }
+        return false;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Replication through a folder every server can reach, a local folder for servers on one machine or a network share
+ * <p/>
+ * Each batch is one file, {@code <node>-<sequence>.delta}, written under a temporary name and renamed into place once complete.
+ * Every server lists the folder on each exchange and reads the files it has not seen yet.
+ * Files older than {@link #RETENTION} are deleted by whichever server notices first, so a server away for longer misses them.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class DirectoryTransport extends ReplicationTransport {
+    static final long RETENTION = 10 * 60 * 1000L;
+    private static final String EXTENSION = ".delta";
+    private static final FilenameFilter BATCHES = new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+            return name.endsWith(EXTENSION);
+        }
+    };
+
+    private final File directory;
+    private final String node;
+    /** Files already read or written by us, kept while they are in the folder */
+    private final Set<String> seen = new HashSet<String>();
+    private long sequence;
+
+    DirectoryTransport(File directory, String node) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory.getPath());
+        }
+        this.directory = directory;
+        this.node = node;
+    }
+
+    @Override
+    final String getName() {
+        return "folder " + directory.getPath();
+    }
+
+    @Override
+    final void publish(byte[] batch) throws IOException {
+        // Time based so a restarted server does not reuse the names of its earlier files
+        sequence = Math.max(sequence + 1, System.currentTimeMillis());
+        String name = node + "-" + String.format("%016x", sequence) + EXTENSION;
+        File temp = new File(directory, name.concat(".tmp"));
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(batch);
+            out.getFD().sync();
+        }
+        finally {
+            out.close();
+        }
+        seen.add(name);
+        if (!temp.renameTo(new File(directory, name))) {
+            temp.delete();
+            seen.remove(name);
+            throw new IOException("Failed to publish " + name);
+        }
+    }
+
+    @Override
+    final List<byte[]> receive() throws IOException {
+        String[] names = directory.list(BATCHES);
+        if (names == null) {
+            throw new IOException("Failed to list " + directory.getPath());
+        }
+        // Sorting keeps each peer's batches in the order they were published
+        Arrays.sort(names);
+        seen.retainAll(Arrays.asList(names));
+        long expired = System.currentTimeMillis() - RETENTION;
+        List<byte[]> batches = new ArrayList<byte[]>();
+        for (String name : names) {
+            File file = new File(directory, name);
+            if (file.lastModified() < expired) {
+                file.delete();
+                continue;
+            }
+            if (!seen.contains(name)) {
+                try {
+                    batches.add(read(file));
+                    seen.add(name);
+                }
+                catch (FileNotFoundException fnfex) {
+                    // Expired and deleted by another server in the meantime
+                }
+            }
+        }
+        return batches;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) file.length());
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        }
+        finally {
+            in.close();
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import java.util.Arrays;
+
+/**
+ * Copy-on-write set of {@link PlayerIds} ids
+ * <p/>
+ * Small sets are a sorted int array, and switch to a bitset once that is the smaller of the two.
+ * Either form is immutable once published, so readers never lock.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class DiscovererSet {
+    private static final int[] EMPTY = new int[0];
+
+    /** Either a sorted int[] or a long[] bitset */
+    private volatile Object members = EMPTY;
+    private volatile int size;
+
+    final boolean contains(int id) {
+        if (id < 0) {
+            return false;
+        }
+        Object current = members;
+        if (current instanceof long[]) {
+            long[] bits = (long[]) current;
+            int word = id >>> 6;
+            return word < bits.length && (bits[word] & (1L << id)) != 0;
+        }
+        return Arrays.binarySearch((int[]) current, id) >= 0;
+    }
+
+    final synchronized boolean add(int id) {
+        Object current = members;
+        if (current instanceof long[]) {
+            long[] bits = (long[]) current;
+            int word = id >>> 6;
+            if (word < bits.length && (bits[word] & (1L << id)) != 0) {
+                return false;
+            }
+            long[] copy = Arrays.copyOf(bits, Math.max(bits.length, word + 1));
+            copy[word] |= 1L << id;
+            members = copy;
+        }
+        else {
+            int[] sorted = (int[]) current;
+            int index = Arrays.binarySearch(sorted, id);
+            if (index >= 0) {
+                return false;
+            }
+            index = -(index + 1);
+            int[] copy = new int[sorted.length + 1];
+            System.arraycopy(sorted, 0, copy, 0, index);
+            copy[index] = id;
+            System.arraycopy(sorted, index, copy, index + 1, sorted.length - index);
+            // 4 bytes per member against 1 bit per possible id
+            members = (long) copy.length * 32 > copy[copy.length - 1] ? toBits(copy) : copy;
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * Adds many ids at once, copying the set only the one time
+     */
+    final synchronized void addAll(int[] ids) {
+        if (ids.length == 0) {
+            return;
+        }
+        int[] current = toArray();
+        int[] merged = Arrays.copyOf(current, current.length + ids.length);
+        System.arraycopy(ids, 0, merged, current.length, ids.length);
+        Arrays.sort(merged);
+        int count = 0;
+        for (int index = 0; index < merged.length; index++) {
+            if (merged[index] >= 0 && (count == 0 || merged[count - 1] != merged[index])) {
+                merged[count++] = merged[index];
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        int[] sorted = count == merged.length ? merged : Arrays.copyOf(merged, count);
+        members = (long) sorted.length * 32 > sorted[sorted.length - 1] ? toBits(sorted) : sorted;
+        size = count;
+    }
+
+    final int size() {
+        return size;
+    }
+
+    final int[] toArray() {
+        Object current = members;
+        if (current instanceof int[]) {
+            return ((int[]) current).clone();
+        }
+        long[] bits = (long[]) current;
+        // Counted from the bits themselves, size is published after members and may not have caught up yet
+        int total = 0;
+        for (long word : bits) {
+            total += Long.bitCount(word);
+        }
+        int[] ids = new int[total];
+        int count = 0;
+        for (int word = 0; word < bits.length; word++) {
+            long value = bits[word];
+            while (value != 0) {
+                ids[count++] = (word << 6) + Long.numberOfTrailingZeros(value);
+                value &= value - 1;
+            }
+        }
+        return ids;
+    }
+
+    private static long[] toBits(int[] sorted) {
+        long[] bits = new long[(sorted[sorted.length - 1] >>> 6) + 1];
+        for (int id : sorted) {
+            bits[id >>> 6] |= 1L << id;
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.api.entity.living.humanoid.Player;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The stations each online player has discovered, the reverse of the discoverer sets the stations keep
+ * <p/>
+ * A player's entry is built the first time it is needed after joining, by one pass over the loaded stations,
+ * and dropped when the player disconnects. Discoveries made while the entry exists are added to it as they happen.
+ * Entries may still hold stations that were removed or whose world unloaded, so readers check a station is still current
+ * and prune it if not.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class DiscoveryIndex {
+    private static final NewUStation[] NONE = new NewUStation[0];
+
+    private final ConcurrentHashMap<UUID, Entry> players = new ConcurrentHashMap<UUID, Entry>();
+
+    /**
+     * Gets the stations the player has discovered, building the player's entry if needed
+     */
+    final NewUStation[] stations(Player player, Collection<StationPartition> loaded) {
+        Entry entry = players.get(player.getUUID());
+        if (entry == null) {
+            Entry created = new Entry(player.getName());
+            entry = players.putIfAbsent(player.getUUID(), created);
+            if (entry == null) {
+                // Published before the pass, so discoveries made during it are not lost
+                entry = created;
+                List<NewUStation> found = new ArrayList<NewUStation>();
+                for (StationPartition partition : loaded) {
+                    for (NewUStation station : partition.stations()) {
+                        if (station.hasDiscoveredNoAdd(player)) {
+                            found.add(station);
+                        }
+                    }
+                }
+                entry.addAll(found);
+            }
+        }
+        return entry.stations;
+    }
+
+    /**
+     * Notes a new discovery, if the player has an entry
+     */
+    final void discovered(UUID uuid, NewUStation station) {
+        Entry entry = players.get(uuid);
+        if (entry != null) {
+            entry.add(station);
+        }
+    }
+
+    /**
+     * Adds the stations of a newly loaded world to the entries of the players who discovered them
+     */
+    final void loaded(StationPartition partition) {
+        for (Map.Entry<UUID, Entry> player : players.entrySet()) {
+            int id = PlayerIds.idOf(player.getKey());
+            String name = player.getValue().name;
+            List<NewUStation> found = new ArrayList<NewUStation>();
+            for (NewUStation station : partition.stations()) {
+                if (station.hasDiscovered(id, name)) {
+                    found.add(station);
+                }
+            }
+            player.getValue().addAll(found);
+        }
+    }
+
+    /**
+     * Drops a station that is no longer current from the player's entry
+     */
+    final void prune(UUID uuid, NewUStation station) {
+        Entry entry = players.get(uuid);
+        if (entry != null) {
+            entry.remove(station);
+        }
+    }
+
+    final void evict(UUID uuid) {
+        players.remove(uuid);
+    }
+
+    /**
+     * Gets the number of players with an entry
+     */
+    final int size() {
+        return players.size();
+    }
+
+    /** One player's stations, copied on write */
+    private static final class Entry {
+        /** The player's name, for the discoveries still recorded under it */
+        final String name;
+        volatile NewUStation[] stations = NONE;
+
+        Entry(String name) {
+            this.name = name;
+        }
+
+        synchronized void add(NewUStation station) {
+            NewUStation[] current = stations;
+            for (NewUStation known : current) {
+                if (known == station) {
+                    return;
+                }
+            }
+            NewUStation[] grown = new NewUStation[current.length + 1];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            grown[current.length] = station;
+            stations = grown;
+        }
+
+        synchronized void addAll(List<NewUStation> found) {
+            if (found.isEmpty()) {
+                return;
+            }
+            NewUStation[] current = stations;
+            Set<NewUStation> known = Collections.newSetFromMap(new IdentityHashMap<NewUStation, Boolean>());
+            Collections.addAll(known, current);
+            NewUStation[] grown = Arrays.copyOf(current, current.length + found.size());
+            int count = current.length;
+            for (NewUStation station : found) {
+                if (known.add(station)) {
+                    grown[count++] = station;
+                }
+            }
+            stations = count == grown.length ? grown : Arrays.copyOf(grown, count);
+        }
+
+        synchronized void remove(NewUStation station) {
+            NewUStation[] current = stations;
+            for (int index = 0; index < current.length; index++) {
+                if (current[index] == station) {
+                    NewUStation[] shrunk = new NewUStation[current.length - 1];
+                    System.arraycopy(current, 0, shrunk, 0, index);
+                    System.arraycopy(current, index + 1, shrunk, index, shrunk.length - index);
+                    stations = shrunk;
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.api.entity.living.humanoid.Player;
+import net.canarymod.api.world.World;
+import net.canarymod.tasks.ServerTask;
+import net.canarymod.tasks.TaskOwner;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Server task running the station checks of moving players in batches, when discovery.batch is on
+ * <p/>
+ * The move hook only queues a player once a check is due, so a burst of moves, as from elytra flights or mass teleports,
+ * costs no more than one queued check per player. Each tick the players waiting go in order of the distance they had moved
+ * since their last check when they became due, farthest first, until discovery.budget microseconds are used.
+ * Whoever is left waits for the next tick. A player is checked at most once a tick, where they were last seen.
+ * Players who have waited a second or more go ahead of that order, longest waiting first, so a steady stream of players
+ * moving far cannot keep those who barely moved waiting forever.
+ * <p/>
+ * A heap keeps the cost of a tick to the players arriving and the checks made, however many are waiting.
+ * Players are also kept in arrival order to find the overdue ones, and each structure drops the players taken from the other lazily.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class DiscoveryScheduler extends ServerTask {
+    private static final Comparator<Queued> FARTHEST_FIRST = new Comparator<Queued>() {
+        @Override
+        public int compare(Queued one, Queued other) {
+            return Double.compare(other.travelledSq, one.travelledSq);
+        }
+    };
+
+    private static final int MAX_WAIT_TICKS = 20;
+
+    private final ConcurrentLinkedQueue<Queued> incoming = new ConcurrentLinkedQueue<Queued>();
+    /** Players carried over from earlier ticks, server thread only */
+    private final PriorityQueue<Queued> waiting = new PriorityQueue<Queued>(64, FARTHEST_FIRST);
+    /** The same players in the order they arrived, server thread only */
+    private final ArrayDeque<Queued> arrivals = new ArrayDeque<Queued>();
+    private final double[] position = new double[3];
+    /** Players in waiting that are not checked yet, server thread only */
+    private int unchecked;
+    private long tick;
+
+    DiscoveryScheduler(TaskOwner owner) {
+        super(owner, 1, true);
+    }
+
+    /**
+     * Queues a player whose session just became due for a check
+     */
+    final void enqueue(Player player, PlayerSession session) {
+        incoming.add(new Queued(player, session, session.travelledSq()));
+    }
+
+    /**
+     * Gets the number of players waiting for a check, from the server thread
+     */
+    final int backlog() {
+        return unchecked + incoming.size();
+    }
+
+    @Override
+    public final void run() {
+        long start = System.nanoTime();
+        tick++;
+        Queued queued;
+        while ((queued = incoming.poll()) != null) {
+            queued.since = tick;
+            waiting.add(queued);
+            arrivals.add(queued);
+            unchecked++;
+        }
+        if (unchecked == 0) {
+            return;
+        }
+        long budget = NewU.cfg.settings().discoveryBudget * 1000;
+        // Always at least one so the queue moves on however small the budget
+        do {
+            check(next());
+        }
+        while (unchecked > 0 && System.nanoTime() - start < budget);
+        if (waiting.size() > 2 * unchecked + 64) {
+            // Overdue players were taken from the arrivals, clear them out of the heap before it fills with them
+            ArrayList<Queued> left = new ArrayList<Queued>(unchecked);
+            for (Queued each : waiting) {
+                if (!each.checked) {
+                    left.add(each);
+                }
+            }
+            waiting.clear();
+            waiting.addAll(left);
+        }
+        Metrics.DISCOVERY_BATCH.stop(start);
+    }
+
+    /**
+     * Takes the player who has waited longest if that is too long, otherwise the one who had moved farthest
+     */
+    private Queued next() {
+        Queued oldest;
+        while ((oldest = arrivals.peek()) != null && oldest.checked) {
+            arrivals.poll();
+        }
+        Queued next;
+        if (oldest != null && tick - oldest.since >= MAX_WAIT_TICKS) {
+            next = arrivals.poll();
+        }
+        else {
+            do {
+                next = waiting.poll();
+            }
+            while (next.checked);
+        }
+        next.checked = true;
+        unchecked--;
+        return next;
+    }
+
+    private void check(Queued queued) {
+        World world = queued.session.takeDue(position);
+        if (world == null) {
+            return; // Left meanwhile
+        }
+        NewUStation found = PlayerSessions.discover(queued.player, world, position[0], position[1], position[2]);
+        if (found != null) {
+            StationHooks.announce(queued.player, found);
+        }
+    }
+
+    private static final class Queued {
+        final Player player;
+        final PlayerSession session;
+        final double travelledSq;
+        long since;
+        boolean checked;
+
+        Queued(Player player, PlayerSession session, double travelledSq) {
+            this.player = player;
+            this.session = session;
+            this.travelledSq = travelledSq;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Access to the economy NewU charges respawn fees in
+ * <p/>
+ * A provider answers {@code false} when the economy refuses, such as for a missing account or insufficient funds.
+ * A debit that throws is waived unless {@link #isRetryable} tells it took nothing and may be sent again.
+ * <p/>
+ * The async variants run the blocking call on the given executor.
+ * A provider whose backend has its own non-blocking calls can override them.
+ *
+ * @author Jason (darkdiplomat)
+ */
+abstract class EconomyProvider {
+
+    /**
+     * Gets the name this provider is selected by in economy.provider
+     */
+    abstract String getName();
+
+    /**
+     * Gets a player's balance
+     *
+     * @param world
+     *         the name of the world the player is in, for economies with a balance per world
+     *
+     * @return the balance, or 0 if the player has no account
+     */
+    abstract double balance(UUID uuid, String name, String world);
+
+    /**
+     * Checks whether an amount could be taken from the player, without taking it
+     */
+    abstract boolean canDebit(UUID uuid, String name, String worldFqName, double amount);
+
+    /**
+     * Takes an amount from the player
+     *
+     * @return {@code true} if it was taken
+     */
+    abstract boolean debit(UUID uuid, String name, String worldFqName, double amount);
+
+    /**
+     * Tells whether a debit that threw this certainly took nothing, so it can be sent again
+     * <p/>
+     * Nothing is by default, as retrying a failure that came after the money was taken would charge the player twice.
+     */
+    boolean isRetryable(RuntimeException failure) {
+        return false;
+    }
+
+    Future<Double> balanceAsync(final UUID uuid, final String name, final String world, Executor executor) {
+        FutureTask<Double> task = new FutureTask<Double>(new Callable<Double>() {
+            @Override
+            public Double call() {
+                return balance(uuid, name, world);
+            }
+        });
+        executor.execute(task);
+        return task;
+    }
+
+    Future<Boolean> canDebitAsync(final UUID uuid, final String name, final String worldFqName, final double amount, Executor executor) {
+        FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return canDebit(uuid, name, worldFqName, amount);
+            }
+        });
+        executor.execute(task);
+        return task;
+    }
+
+    Future<Boolean> debitAsync(final UUID uuid, final String name, final String worldFqName, final double amount, Executor executor) {
+        FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return debit(uuid, name, worldFqName, amount);
+            }
+        });
+        executor.execute(task);
+        return task;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import java.util.UUID;
+
+/**
+ * A respawn fee worked out once when the player respawns and settled once they are back in the world
+ * <p/>
+ * Immutable, so the amount shown to the player is the amount charged.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class FeeQuote {
+    /** Fees below this are not worth collecting and the player is treated as unable to pay */
+    static final double MINIMUM = 0.50;
+
+    private final UUID uuid;
+    private final String world, worldFqName;
+    private final double amount;
+
+    FeeQuote(UUID uuid, String world, String worldFqName, double amount) {
+        this.uuid = uuid;
+        this.world = world;
+        this.worldFqName = worldFqName;
+        this.amount = amount;
+    }
+
+    final UUID getUUID() {
+        return uuid;
+    }
+
+    /** The world the balance was read in */
+    final String getWorld() {
+        return world;
+    }
+
+    final String getWorldFqName() {
+        return worldFqName;
+    }
+
+    final double getAmount() {
+        return amount;
+    }
+
+    final boolean isPayable() {
+        return amount >= MINIMUM;
+    }
+
+    @Override
+    public final String toString() {
+        return String.format("Fee: %.2f", amount);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import net.canarymod.api.world.position.Location;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * The stations.json snapshot format, readable and hand-editable
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class JsonSnapshot implements SnapshotFormat {
+
+    @Override
+    public final String extension() {
+        return ".json";
+    }
+
+    @Override
+    public final int read(File file, StationSink sink) throws IOException {
+        int generation = 0;
+        JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8")));
+        try {
+            reader.beginObject(); // Begin main object
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("Generation")) {
+                    generation = reader.nextInt();
+                }
+                else if (name.equals("Station")) {
+                    NewUStation temp = null;
+                    ArrayList<String> discoverers = new ArrayList<String>();
+                    reader.beginObject(); // Begin Station
+                    String foundName = null;
+                    while (reader.hasNext()) {
+                        name = reader.nextName();
+                        if (name.equals("Name")) {
+                            foundName = reader.nextString();
+                        }
+                        else if (name.equals("Location")) {
+                            reader.beginObject(); // Begin Location
+                            temp = new NewUStation(foundName, reader); // Pass reader into NewUStation object for parsing
+                            reader.endObject(); // End Location
+                        }
+                        else if (name.equals("Discoverers")) {
+                            reader.beginArray(); // Begin Discoverers
+                            while (reader.hasNext()) {
+                                discoverers.add(reader.nextString());
+                            }
+                            reader.endArray(); // End Discoverers
+                        }
+                        else {
+                            reader.skipValue(); // UNKNOWN THING
+                        }
+                    }
+                    if (temp != null) {
+                        restoreDiscoverers(temp, discoverers);
+                        sink.restoreStation(temp);
+                    }
+                    reader.endObject(); //End Station
+                }
+                else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject(); // End main object
+        }
+        finally {
+            reader.close();
+        }
+        return generation;
+    }
+
+    private void restoreDiscoverers(NewUStation station, ArrayList<String> discoverers) {
+        int[] ids = new int[discoverers.size()];
+        int count = 0;
+        for (String discoverer : discoverers) {
+            if (discoverer.length() == 36 && discoverer.charAt(8) == '-') {
+                try {
+                    ids[count] = PlayerIds.intern(UUID.fromString(discoverer));
+                    count++;
+                    continue;
+                }
+                catch (IllegalArgumentException iaex) {
+                    // Not a UUID after all
+                }
+            }
+            station.addLegacyDiscoverer(discoverer);
+        }
+        int[] trimmed = new int[count];
+        System.arraycopy(ids, 0, trimmed, 0, count);
+        station.addDiscoverers(trimmed);
+    }
+
+    @Override
+    public final void write(OutputStream out, Collection<NewUStation> stations, int generation) throws IOException {
+        PrintWriter pWriter = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out, "UTF-8")));
+        JsonWriter writer = new JsonWriter(pWriter);
+        writer.beginObject(); // Master Object
+        pWriter.println();
+        pWriter.print("\t");
+        writer.name("Generation");
+        writer.value(generation);
+        pWriter.println();
+        for (NewUStation station : stations) {
+            pWriter.print("\t");
+            writer.name("Station");
+            writer.beginObject(); // Station object
+            writer.name("Name");
+            writer.value(station.getName());
+            writer.name("Location");
+            writer.beginObject(); // Location Object
+            writer.name("World");
+            Location loc = station.getStationLocation();
+            writer.value(loc.getWorldName());
+            writer.name("Dimension");
+            writer.value(loc.getType().getName());
+            writer.name("X");
+            writer.value(loc.getBlockX());
+            writer.name("Y");
+            writer.value(loc.getBlockY());
+            writer.name("Z");
+            writer.value(loc.getBlockZ());
+            writer.endObject(); // End Location
+            writer.name("Discoverers");
+            writer.beginArray(); // Discoverers Array
+            for (String discoverer : station.discoverers()) {
+                writer.value(discoverer);
+            }
+            writer.endArray(); // End Discoverers
+            writer.endObject(); // End Station
+            pWriter.println();
+        }
+        writer.endObject(); // End Master
+        writer.flush();
+        if (pWriter.checkError()) {
+            throw new IOException("Failed to write JSON snapshot");
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Low overhead latency histogram
+ * <p/>
+ * Samples go into log-linear buckets, four per power of two, so percentiles are accurate to within about 19%.
+ * Each thread records into one of several stripes picked by its id, so hook threads do not fight over the same counters.
+ * Stripes are only merged when a snapshot is taken.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class LatencyTimer {
+    private static final int SUB_BITS = 2, SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+    private static final int STRIPES = stripes();
+
+    private final String name;
+    private final AtomicLongArray[] counts = new AtomicLongArray[STRIPES];
+    private final AtomicLong[] maxima = new AtomicLong[STRIPES];
+
+    LatencyTimer(String name) {
+        this.name = name;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            counts[stripe] = new AtomicLongArray(BUCKETS);
+            maxima[stripe] = new AtomicLong();
+        }
+    }
+
+    final String getName() {
+        return name;
+    }
+
+    /**
+     * Records the time since {@code startNanos}, as taken from {@link System#nanoTime()}
+     */
+    final void stop(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    final void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        counts[stripe].incrementAndGet(bucketOf(nanos));
+        AtomicLong max = maxima[stripe];
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+            // Lost to another thread on this stripe, look again
+        }
+    }
+
+    /**
+     * Gets the number of samples, without working out percentiles
+     */
+    final long count() {
+        long total = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                total += counts[stripe].get(bucket);
+            }
+        }
+        return total;
+    }
+
+    final TimerSnapshot snapshot() {
+        long[] merged = new long[BUCKETS];
+        long total = 0, max = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                long count = counts[stripe].get(bucket);
+                merged[bucket] += count;
+                total += count;
+            }
+            max = Math.max(max, maxima[stripe].get());
+        }
+        return new TimerSnapshot(name, total, percentile(merged, total, 0.50, max), percentile(merged, total, 0.99, max), max);
+    }
+
+    private static long percentile(long[] buckets, long total, double fraction, long max) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * fraction), seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += buckets[bucket];
+            if (seen >= rank) {
+                return Math.min(upperBound(bucket), max);
+            }
+        }
+        return max;
+    }
+
+    private static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return ((magnitude - SUB_BITS + 1) << SUB_BITS) + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int magnitude = (bucket >>> SUB_BITS) + SUB_BITS - 1;
+        long sub = bucket & (SUB_BUCKETS - 1);
+        return ((SUB_BUCKETS + sub + 1) << (magnitude - SUB_BITS)) - 1;
+    }
+
+    private static int stripes() {
+        int wanted = Math.max(2, Runtime.getRuntime().availableProcessors());
+        return Integer.highestOneBit(wanted - 1) << 1;
+    }
+}
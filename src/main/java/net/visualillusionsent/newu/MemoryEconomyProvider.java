@@ -0,0 +1,87 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Economy held in memory, for measuring the charging path without an economy plugin
+ * <p/>
+ * Every player starts with the same balance, and each call can be slowed by a fixed latency to stand in for a remote backend.
+ * Balances are lost on restart.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class MemoryEconomyProvider extends EconomyProvider {
+    private final ConcurrentHashMap<UUID, Double> balances = new ConcurrentHashMap<UUID, Double>();
+    private final double startingBalance;
+    private final long latency;
+
+    /**
+     * @param latency
+     *         milliseconds each call waits before answering
+     */
+    MemoryEconomyProvider(double startingBalance, long latency) {
+        this.startingBalance = startingBalance;
+        this.latency = latency;
+    }
+
+    @Override
+    final String getName() {
+        return "memory";
+    }
+
+    @Override
+    final double balance(UUID uuid, String name, String world) {
+        delay();
+        Double balance = balances.get(uuid);
+        return balance != null ? balance : startingBalance;
+    }
+
+    @Override
+    final boolean canDebit(UUID uuid, String name, String worldFqName, double amount) {
+        return balance(uuid, name, worldFqName) >= amount;
+    }
+
+    @Override
+    final boolean debit(UUID uuid, String name, String worldFqName, double amount) {
+        delay();
+        balances.putIfAbsent(uuid, startingBalance);
+        while (true) {
+            Double balance = balances.get(uuid);
+            if (balance < amount) {
+                return false;
+            }
+            if (balances.replace(uuid, balance, balance - amount)) {
+                return true;
+            }
+        }
+    }
+
+    private void delay() {
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            }
+            catch (InterruptedException iex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency timers for the hot paths of NewU, shown by /newu stats and over JMX
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class Metrics implements NewUStatsMXBean {
+    static final LatencyTimer MOVE_HOOK = new LatencyTimer("Move hook");
+    static final LatencyTimer DISCOVERY_BATCH = new LatencyTimer("Discovery batch");
+    static final LatencyTimer RESPAWNING_HOOK = new LatencyTimer("Respawning hook");
+    static final LatencyTimer RESPAWNED_HOOK = new LatencyTimer("Respawned hook");
+    static final LatencyTimer STATION_LOOKUP = new LatencyTimer("Station lookup");
+    static final LatencyTimer RESPAWN_LOOKUP = new LatencyTimer("Respawn lookup");
+    static final LatencyTimer SNAPSHOT_STORE = new LatencyTimer("Snapshot store");
+    static final LatencyTimer ECONOMY_BALANCE = new LatencyTimer("Economy balance");
+    static final LatencyTimer ECONOMY_DEBIT = new LatencyTimer("Economy debit");
+    private static final LatencyTimer[] TIMERS = { MOVE_HOOK, DISCOVERY_BATCH, RESPAWNING_HOOK, RESPAWNED_HOOK, STATION_LOOKUP, RESPAWN_LOOKUP, SNAPSHOT_STORE, ECONOMY_BALANCE, ECONOMY_DEBIT };
+    private static final long START = System.nanoTime();
+    private static ObjectName registered;
+
+    @Override
+    public final TimerSnapshot[] getTimers() {
+        TimerSnapshot[] snapshots = new TimerSnapshot[TIMERS.length];
+        for (int index = 0; index < TIMERS.length; index++) {
+            snapshots[index] = TIMERS[index].snapshot();
+        }
+        return snapshots;
+    }
+
+    @Override
+    public final double getLookupsPerSecond() {
+        double seconds = (System.nanoTime() - START) / 1e9;
+        return seconds > 0 ? (STATION_LOOKUP.count() + RESPAWN_LOOKUP.count()) / seconds : 0;
+    }
+
+    @Override
+    public final long getPersistenceBacklog() {
+        return NewU.tracker != null ? NewU.tracker.backlog() : 0;
+    }
+
+    @Override
+    public final long getSettlementBacklog() {
+        return NewU.settlements != null ? NewU.settlements.backlog() : 0;
+    }
+
+    static synchronized void register(Logger logger) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("net.visualillusionsent.newu:type=Stats");
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name); // Left behind by an earlier load of the plugin
+            }
+            server.registerMBean(new Metrics(), name);
+            registered = name;
+        }
+        catch (Exception ex) {
+            logger.log(Level.WARNING, "Failed to register the NewU stats MBean...", ex);
+        }
+    }
+
+    static synchronized void unregister() {
+        if (registered != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+            }
+            catch (Exception ex) {
+                // IGNORED
+            }
+            registered = null;
+        }
+    }
+}
@@ -19,9 +19,12 @@ package net.visualillusionsent.newu;
 
 import net.canarymod.Canary;
 import net.canarymod.commandsys.CommandDependencyException;
+import net.canarymod.tasks.ServerTaskManager;
 import net.visualillusionsent.minecraft.plugin.canary.VisualIllusionsCanaryPlugin;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
 import java.util.logging.Level;
 
 /**
@@ -31,7 +34,13 @@ public final class NewU extends VisualIllusionsCanaryPlugin {
     static StationTracker tracker;
     static NewUConfiguration cfg;
     static File cfgDir = new File("config/NewU/");
-    static EconomyType ecoSystem;
+    static EconomyProvider economy;
+    static SettlementQueue settlements;
+    static SpawnPoolRefresher spawnRefresher;
+    static SettingsWatcher settingsWatcher;
+    static DiscoveryScheduler discoveryScheduler;
+    static StationReplicator replicator;
+    static NewUStations stations;
 
     @Override
     public final boolean enable() {
@@ -43,14 +52,29 @@ public final class NewU extends VisualIllusionsCanaryPlugin {
                     return false;
                 }
             }
-            cfg = new NewUConfiguration(this);
-            if (cfg.isCharging() && Canary.pluginManager().getPlugin("dConomy") == null && Canary.pluginManager().getPlugin("Craftconomy3") == null) {
+            cfg = new NewUConfiguration(new File(cfgDir, "settings.cfg"), getPluginLogger());
+            economy = economyProvider();
+            if (cfg.settings().charging && economy == null) {
                 getPluginLogger().warning("Charging was enabled but no suitable economy plugin present is not present. Cannot continue...");
                 return false;
             }
-            tracker = new StationTracker(this);
+            Metrics.register(getPluginLogger());
+            spawnRefresher = new SpawnPoolRefresher(this);
+            settingsWatcher = new SettingsWatcher(this);
+            discoveryScheduler = new DiscoveryScheduler(this);
+            tracker = new StationTracker(getPluginLogger(), Canary.getServer().getWorldManager().getAllWorlds());
+            stations = new NewUStations(getPluginLogger());
+            replicator = replicator();
+            if (replicator != null) {
+                replicator.start();
+            }
             new RespawnStationListener(this);
-            ecoSystem = Canary.pluginManager().getPlugin("dConomy") != null ? EconomyType.DCONOMY : EconomyType.CRAFTCONOMY;
+            ServerTaskManager.addTask(spawnRefresher);
+            ServerTaskManager.addTask(settingsWatcher);
+            ServerTaskManager.addTask(discoveryScheduler);
+            if (cfg.settings().charging) {
+                settlements = new SettlementQueue(this);
+            }
             return true;
         }
         catch (CommandDependencyException cdex) {
@@ -59,8 +83,81 @@ public final class NewU extends VisualIllusionsCanaryPlugin {
         return false;
     }
 
+    /**
+     * Gets the station lookups for other plugins
+     *
+     * @return the lookups, or {@code null} while NewU is not enabled
+     */
+    public static NewUStations getStations() {
+        return stations;
+    }
+
+    /**
+     * Picks the economy named by economy.provider, or the first economy plugin found for auto
+     *
+     * @return the provider or {@code null} if its plugin is not present
+     */
+    private EconomyProvider economyProvider() {
+        String name = cfg.settings().economyProvider;
+        if (name.equals("memory")) {
+            getPluginLogger().warning("Using the memory economy, respawn fees are not charged to real accounts");
+            return new MemoryEconomyProvider(cfg.settings().memoryEconomyBalance, cfg.settings().memoryEconomyLatency);
+        }
+        if ((name.equals("auto") || name.equals("dconomy")) && Canary.pluginManager().getPlugin("dConomy") != null) {
+            return new DConomyProvider();
+        }
+        if ((name.equals("auto") || name.equals("craftconomy")) && Canary.pluginManager().getPlugin("Craftconomy3") != null) {
+            return new CraftconomyProvider();
+        }
+        return null;
+    }
+
+    /**
+     * Sets up sharing of stations with other servers if replication.directory names a folder
+     *
+     * @return the replicator or {@code null} if not sharing
+     */
+    private StationReplicator replicator() {
+        String directory = cfg.settings().replicationDirectory;
+        if (directory.isEmpty()) {
+            return null;
+        }
+        String node = UUID.randomUUID().toString().substring(0, 8);
+        try {
+            return new StationReplicator(node, new DirectoryTransport(new File(directory), node), getPluginLogger());
+        }
+        catch (IOException ioex) {
+            getPluginLogger().log(Level.SEVERE, "Failed to set up station sharing, stations stay local to this server...", ioex);
+            return null;
+        }
+    }
+
     @Override
     public final void disable() {
-        tracker.storeStations();
+        if (spawnRefresher != null) {
+            ServerTaskManager.removeTask(spawnRefresher);
+        }
+        if (settingsWatcher != null) {
+            ServerTaskManager.removeTask(settingsWatcher);
+        }
+        if (discoveryScheduler != null) {
+            ServerTaskManager.removeTask(discoveryScheduler);
+            discoveryScheduler = null;
+        }
+        Metrics.unregister();
+        if (replicator != null) {
+            replicator.shutdown();
+        }
+        tracker.shutdown();
+        if (stations != null) {
+            stations.shutdown();
+            stations = null;
+        }
+        if (settlements != null) {
+            settlements.shutdown();
+        }
+        if (cfg.settings().charging) {
+            getPluginLogger().info("Fee balance lookups: " + TransactionHandler.backendCalls() + " sent to the economy plugin, " + TransactionHandler.savedCalls() + " saved");
+        }
     }
 }
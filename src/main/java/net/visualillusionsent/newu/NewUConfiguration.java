@@ -19,14 +19,29 @@ package net.visualillusionsent.newu;
 
 import net.visualillusionsent.utils.PropertiesFile;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
 /**
+ * Holds the running {@link NewUSettings} and swaps in a new snapshot when settings.cfg changes
+ * <p/>
+ * Changed files are only taken on when every value passes its checks, otherwise the running settings stay as they are.
+ *
  * @author Jason (darkdiplomat)
  */
 final class NewUConfiguration {
     private final PropertiesFile cfg;
+    private final File file;
+    private final Logger logger;
+    private volatile NewUSettings settings;
+    private long modified;
 
-    NewUConfiguration(NewU newU) {
-        cfg = new PropertiesFile(NewU.cfgDir.getAbsolutePath().concat("/settings.cfg"));
+    NewUConfiguration(File file, Logger logger) {
+        this.file = file;
+        this.logger = logger;
+        cfg = new PropertiesFile(file.getAbsolutePath());
 
         cfg.getBoolean("respawn.charge", false);
         cfg.setComments("respawn.charge", "Whether to charge for use of a NewU station");
@@ -34,18 +49,96 @@ final class NewUConfiguration {
         cfg.setComments("charge.percent", "A percentage of the Player's current monetary holdings, not to exceed 50% and not less than 1%");
         cfg.getBoolean("waive.payments", true);
         cfg.setComments("waive.payments", "Whether to allow use of a NewU station if not able to pay");
+        cfg.getString("economy.provider", "auto");
+        cfg.setComments("economy.provider", "Economy to charge in: auto (dConomy, else Craftconomy3), dconomy, craftconomy or memory (testing only, balances are not kept)");
+        cfg.getDouble("economy.memory.balance", 1000.0D);
+        cfg.setComments("economy.memory.balance", "Starting balance of every player with the memory economy");
+        cfg.getInt("economy.memory.latency", 0);
+        cfg.setComments("economy.memory.latency", "Milliseconds each memory economy call waits, to stand in for a remote economy");
+        cfg.getInt("balance.cache.ttl", 3);
+        cfg.setComments("balance.cache.ttl", "Seconds a player's balance is remembered before asking the economy plugin again, 0 to always ask");
+        cfg.getInt("spawn.refresh", 300);
+        cfg.setComments("spawn.refresh", "Seconds between rechecks of every station's safe respawn spots, spots next to changed blocks are rechecked right away");
+        cfg.getBoolean("respawn.balance", false);
+        cfg.setComments("respawn.balance", "Whether to spread respawns over nearby discovered stations instead of always using the closest");
+        cfg.getInt("respawn.balance.slack", 64);
+        cfg.setComments("respawn.balance.slack", "Blocks further than the closest discovered station a player may be sent when balancing");
+        cfg.getInt("respawn.balance.window", 30);
+        cfg.setComments("respawn.balance.window", "Seconds of recent respawns compared between stations when balancing, at most 60");
+        cfg.getInt("respawn.balance.cap", 4);
+        cfg.setComments("respawn.balance.cap", "Respawns per second a station takes while a station in reach has room, 0 for no cap");
+        cfg.getInt("discovery.radius", 25);
+        cfg.setComments("discovery.radius", "Blocks from a station within which walking players discover it");
+        cfg.getBoolean("discovery.batch", false);
+        cfg.setComments("discovery.batch", "Whether to check moving players for stations in batches each tick instead of on every move, farthest moved first");
+        cfg.getInt("discovery.budget", 500);
+        cfg.setComments("discovery.budget", "Microseconds of each tick batched station checks may take, the rest wait for the next tick");
+        cfg.getInt("station.exclusion", 50);
+        cfg.setComments("station.exclusion", "Blocks that must separate a new station from every other station in its world");
+        cfg.getInt("persistence.delay", 5);
+        cfg.setComments("persistence.delay", "Seconds without further changes before stations are written to disk");
+        cfg.getInt("persistence.max.stale", 60);
+        cfg.setComments("persistence.max.stale", "Maximum seconds a change may wait to be written to disk while changes keep coming in");
+        cfg.getInt("journal.compact.size", 1024);
+        cfg.setComments("journal.compact.size", "Size in KB a world's station journal may reach before it is folded into its station snapshot");
+        cfg.getString("storage.format", "json");
+        cfg.setComments("storage.format", "Station snapshot format: json (.json files, hand-editable) or binary (.dat files, faster to load)");
+        cfg.getString("storage.backend", "files");
+        cfg.setComments("storage.backend", "Where stations and discoveries are kept: files (a snapshot and journal per world) or h2 (an embedded database, loading discoveries per player as they join)");
+        cfg.getString("replication.directory", "");
+        cfg.setComments("replication.directory", "Folder shared by every server that should share stations and discoveries, blank to not share");
+        cfg.getInt("replication.interval", 500);
+        cfg.setComments("replication.interval", "Milliseconds between exchanges of station changes with the other servers");
         cfg.save();
-    }
+        modified = file.lastModified();
 
-    public final boolean isCharging() {
-        return cfg.getBoolean("respawn.charge");
+        List<String> problems = new ArrayList<String>();
+        settings = new NewUSettings(cfg, null, problems);
+        for (String problem : problems) {
+            logger.warning("Invalid setting, using the default: " + problem);
+        }
     }
 
-    public final double chargePercent() {
-        return cfg.getDouble("charge.percent") / 100;
+    /**
+     * Gets the settings currently in use
+     */
+    final NewUSettings settings() {
+        return settings;
     }
 
-    public final boolean isWaivable() {
-        return cfg.getBoolean("waive.payments");
+    /**
+     * Reads settings.cfg again if it was modified since it was last read
+     *
+     * @return {@code true} if new settings were taken on
+     */
+    final synchronized boolean reloadIfModified() {
+        long now = file.lastModified();
+        if (now == modified) {
+            return false;
+        }
+        modified = now;
+        try {
+            cfg.reload();
+        }
+        catch (RuntimeException rex) {
+            logger.warning("Failed to read changed settings.cfg, keeping the current settings: " + rex.getMessage());
+            return false;
+        }
+        List<String> problems = new ArrayList<String>();
+        NewUSettings changed = new NewUSettings(cfg, settings, problems);
+        if (!problems.isEmpty()) {
+            for (String problem : problems) {
+                logger.warning("Invalid setting: " + problem);
+            }
+            logger.warning("Changed settings.cfg was not applied, keeping the current settings");
+            return false;
+        }
+        String restart = changed.restartNeeded(cfg);
+        if (!restart.isEmpty()) {
+            logger.info("Changes to " + restart + " take effect after a restart");
+        }
+        settings = changed;
+        logger.info("Reloaded settings.cfg");
+        return true;
     }
 }
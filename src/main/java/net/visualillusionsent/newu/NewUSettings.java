@@ -0,0 +1,153 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.visualillusionsent.utils.PropertiesFile;
+
+import java.util.List;
+
+/**
+ * One parsed and checked reading of settings.cfg
+ * <p/>
+ * Immutable, so the running snapshot is read with plain field access from any thread.
+ * Values that fail the checks fall back to their defaults and are reported.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class NewUSettings {
+    final boolean charging;
+    final double chargePercent;
+    final boolean waivable;
+    final String economyProvider;
+    final double memoryEconomyBalance;
+    final long memoryEconomyLatency;
+    final long balanceCacheTTL;
+    final long spawnRefreshInterval;
+    final boolean balancing;
+    final double balanceSlack;
+    final int balanceWindow;
+    final int balanceCap;
+    final double discoveryRadius;
+    final boolean discoveryBatching;
+    final long discoveryBudget;
+    final double exclusionDistance;
+    final long persistenceDelay;
+    final long persistenceMaxStale;
+    final long journalCompactSize;
+    final String storageFormat;
+    final String storageBackend;
+    final String replicationDirectory;
+    final long replicationInterval;
+
+    /**
+     * @param running
+     *         the settings in use, whose values that only apply on start are kept; {@code null} on start
+     * @param problems
+     *         receives a description of every value that was rejected
+     */
+    NewUSettings(PropertiesFile cfg, NewUSettings running, List<String> problems) {
+        double percent = number(cfg, "charge.percent", 7.0D, problems);
+        if (percent < 1 || percent > 50) {
+            problems.add("charge.percent must be from 1 to 50, was " + percent);
+            percent = 7.0D;
+        }
+        chargePercent = percent / 100;
+        waivable = cfg.getBoolean("waive.payments");
+        balanceCacheTTL = (long) (atLeast(cfg, "balance.cache.ttl", 3, 0, problems) * 1000);
+        spawnRefreshInterval = (long) (atLeast(cfg, "spawn.refresh", 300, 10, problems) * 1000);
+        balancing = cfg.getBoolean("respawn.balance");
+        balanceSlack = atLeast(cfg, "respawn.balance.slack", 64, 0, problems);
+        int window = (int) atLeast(cfg, "respawn.balance.window", 30, 1, problems);
+        if (window > ArrivalWindow.MAX_SECONDS) {
+            problems.add("respawn.balance.window may be at most " + ArrivalWindow.MAX_SECONDS + ", was " + window);
+            window = 30;
+        }
+        balanceWindow = window;
+        balanceCap = (int) atLeast(cfg, "respawn.balance.cap", 4, 0, problems);
+        discoveryRadius = atLeast(cfg, "discovery.radius", 25, 1, problems);
+        discoveryBatching = cfg.getBoolean("discovery.batch");
+        discoveryBudget = (long) atLeast(cfg, "discovery.budget", 500, 10, problems);
+        exclusionDistance = atLeast(cfg, "station.exclusion", 50, 0, problems);
+        persistenceDelay = (long) (atLeast(cfg, "persistence.delay", 5, 1, problems) * 1000);
+        persistenceMaxStale = Math.max(persistenceDelay, (long) (atLeast(cfg, "persistence.max.stale", 60, 1, problems) * 1000));
+        journalCompactSize = (long) (atLeast(cfg, "journal.compact.size", 1024, 1, problems) * 1024);
+        replicationInterval = (long) atLeast(cfg, "replication.interval", 500, 50, problems);
+
+        if (running != null) {
+            // The economy, station storage and replication are set up once on start
+            charging = running.charging;
+            economyProvider = running.economyProvider;
+            memoryEconomyBalance = running.memoryEconomyBalance;
+            memoryEconomyLatency = running.memoryEconomyLatency;
+            storageFormat = running.storageFormat;
+            storageBackend = running.storageBackend;
+            replicationDirectory = running.replicationDirectory;
+        }
+        else {
+            charging = cfg.getBoolean("respawn.charge");
+            economyProvider = cfg.getString("economy.provider").toLowerCase();
+            memoryEconomyBalance = number(cfg, "economy.memory.balance", 1000.0D, problems);
+            memoryEconomyLatency = (long) atLeast(cfg, "economy.memory.latency", 0, 0, problems);
+            storageFormat = cfg.getString("storage.format");
+            storageBackend = cfg.getString("storage.backend").toLowerCase();
+            replicationDirectory = cfg.getString("replication.directory").trim();
+        }
+    }
+
+    /**
+     * Lists the keys read only on start whose value in the file differs from the one in use
+     */
+    final String restartNeeded(PropertiesFile cfg) {
+        StringBuilder keys = new StringBuilder();
+        if (cfg.getBoolean("respawn.charge") != charging) {
+            keys.append(" respawn.charge");
+        }
+        if (!cfg.getString("economy.provider").toLowerCase().equals(economyProvider)) {
+            keys.append(" economy.provider");
+        }
+        if (!cfg.getString("storage.format").equals(storageFormat)) {
+            keys.append(" storage.format");
+        }
+        if (!cfg.getString("storage.backend").toLowerCase().equals(storageBackend)) {
+            keys.append(" storage.backend");
+        }
+        if (!cfg.getString("replication.directory").trim().equals(replicationDirectory)) {
+            keys.append(" replication.directory");
+        }
+        return keys.toString().trim();
+    }
+
+    private static double number(PropertiesFile cfg, String key, double fallback, List<String> problems) {
+        try {
+            return cfg.getDouble(key);
+        }
+        catch (RuntimeException rex) {
+            problems.add(key + " is not a number");
+            return fallback;
+        }
+    }
+
+    private static double atLeast(PropertiesFile cfg, String key, double fallback, int minimum, List<String> problems) {
+        double value = number(cfg, key, fallback, problems);
+        if (value < minimum) {
+            problems.add(key + " may not be less than " + minimum + ", was " + value);
+            return fallback;
+        }
+        return value;
+    }
+}
@@ -24,9 +24,8 @@ import net.canarymod.api.world.DimensionType;
 import net.canarymod.api.world.position.Location;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -35,20 +34,28 @@ import java.util.UUID;
 final class NewUStation {
     private final String name;
     private final Location station;
-    private final List<String> discoverers;
+    private final DiscovererSet discoverers = new DiscovererSet();
+    private volatile Set<String> legacyDiscoverers; // Pre-UUID names, migrated as those players show up
+    private final SpawnPool spawnPool = new SpawnPool();
+    private volatile ArrivalWindow arrivals; // Only stations respawned at while balancing need one
 
     NewUStation(String name, Location station) {
         this.name = name;
-        this.discoverers = Collections.synchronizedList(new ArrayList<String>());
         // Adjust for centering
         this.station = new Location(station.getBlockX() + 0.5, station.getBlockY() + 0.1, station.getBlockZ() + 0.5);
         this.station.setWorldName(station.getWorldName());
         this.station.setType(station.getType());
     }
 
+    NewUStation(String name, String world, DimensionType type, double x, double y, double z) {
+        this.name = name;
+        this.station = new Location(x, y, z);
+        this.station.setWorldName(world);
+        this.station.setType(type);
+    }
+
     NewUStation(String stationName, JsonReader reader) throws IOException {
         String tempName = stationName == null ? UUID.randomUUID().toString() : stationName;
-        this.discoverers = Collections.synchronizedList(new ArrayList<String>());
 
         this.station = new Location(0, 0, 0); // Initialize
         while (reader.hasNext()) {
@@ -89,24 +96,88 @@ final class NewUStation {
         return name;
     }
 
-    final void addDiscoverer(String name) {
-        synchronized (discoverers) {
-            discoverers.add(name);
+    /**
+     * Adds a stored discoverer, either a UUID or a player name from before UUIDs were tracked
+     */
+    final void addDiscoverer(String discoverer) {
+        if (discoverer.length() == 36 && discoverer.charAt(8) == '-') {
+            try {
+                addDiscoverer(UUID.fromString(discoverer));
+                return;
+            }
+            catch (IllegalArgumentException iaex) {
+                // Not a UUID after all, keep it as a name
+            }
         }
+        addLegacyDiscoverer(discoverer);
     }
 
-    final boolean hasDiscovered(Player player) {
-        synchronized (discoverers) {
-            return discoverers.contains(player.getName()) || (distanceFrom(player) <= 10 && discoverers.add(player.getName()));
+    final synchronized void addLegacyDiscoverer(String name) {
+        if (legacyDiscoverers == null) {
+            legacyDiscoverers = new HashSet<String>();
         }
+        legacyDiscoverers.add(name);
+    }
+
+    /**
+     * Adds stored discoverers in bulk while loading
+     *
+     * @param ids
+     *         the {@link PlayerIds} of the discoverers
+     */
+    final void addDiscoverers(int[] ids) {
+        discoverers.addAll(ids);
+    }
+
+    final boolean addDiscoverer(UUID uuid) {
+        return discoverers.add(PlayerIds.intern(uuid));
     }
 
+    /**
+     * Checks the discoverer set alone, without migrating names
+     *
+     * @param id
+     *         the {@link PlayerIds} id of the player
+     */
+    final boolean hasDiscovered(int id) {
+        return discoverers.contains(id);
+    }
+
+    /**
+     * Checks the discoverer set and the pre-UUID names, leaving the migration of a name to {@link StationTracker#hasDiscovered}
+     */
     final boolean hasDiscoveredNoAdd(Player player) {
-        synchronized (discoverers) {
-            return discoverers.contains(player.getName());
+        return hasDiscovered(PlayerIds.idOf(player.getUUID()), player.getName());
+    }
+
+    final boolean hasDiscovered(int id, String name) {
+        return discoverers.contains(id) || isLegacyDiscoverer(name);
+    }
+
+    final boolean isLegacyDiscoverer(String name) {
+        if (legacyDiscoverers == null) { // Racy peek, the common case once everyone has been migrated
+            return false;
+        }
+        synchronized (this) {
+            return legacyDiscoverers != null && legacyDiscoverers.contains(name);
         }
     }
 
+    /**
+     * Drops a pre-UUID name, for the tracker to record the player's UUID in its place
+     *
+     * @return {@code true} if the name was a discoverer
+     */
+    final synchronized boolean removeLegacyDiscoverer(String name) {
+        if (legacyDiscoverers == null || !legacyDiscoverers.remove(name)) {
+            return false;
+        }
+        if (legacyDiscoverers.isEmpty()) {
+            legacyDiscoverers = null;
+        }
+        return true;
+    }
+
     final double distanceFrom(Player player) {
         if (!player.getWorld().getName().equals(station.getWorldName()) || player.getWorld().getType() != station.getType()) {
             return Double.MAX_VALUE;
@@ -118,7 +189,35 @@ final class NewUStation {
         return station;
     }
 
+    final SpawnPool spawnPool() {
+        return spawnPool;
+    }
+
+    final ArrivalWindow arrivals() {
+        ArrivalWindow current = arrivals;
+        if (current == null) {
+            synchronized (this) {
+                if (arrivals == null) {
+                    arrivals = new ArrivalWindow();
+                }
+                current = arrivals;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Gets a place to respawn the player, from the checked spots if there are any
+     */
     final Location getRespawnLocation() {
+        Location spot = spawnPool.draw(station);
+        return spot != null ? spot : getAnchorRespawnLocation();
+    }
+
+    /**
+     * Gets an unchecked spot a few blocks off the station
+     */
+    final Location getAnchorRespawnLocation() {
         Location temp = station.copy();
         double fudge = Math.random();
         int adj = 2;
@@ -144,7 +243,28 @@ final class NewUStation {
         return super.toString(); //TODO
     }
 
+    final int[] discovererIds() {
+        return discoverers.toArray();
+    }
+
+    /**
+     * Gets the names still waiting on migration to UUIDs
+     */
+    final synchronized String[] legacyDiscoverers() {
+        return legacyDiscoverers == null ? new String[0] : legacyDiscoverers.toArray(new String[legacyDiscoverers.size()]);
+    }
+
+    /**
+     * Gets the discoverers for storage, as UUID strings followed by any names still waiting on migration
+     */
     final String[] discoverers() {
-        return discoverers.toArray(new String[discoverers.size()]);
+        int[] ids = discoverers.toArray();
+        String[] legacy = legacyDiscoverers();
+        String[] all = new String[ids.length + legacy.length];
+        for (int index = 0; index < ids.length; index++) {
+            all[index] = PlayerIds.uuidOf(ids[index]).toString();
+        }
+        System.arraycopy(legacy, 0, all, ids.length, legacy.length);
+        return all;
     }
 }
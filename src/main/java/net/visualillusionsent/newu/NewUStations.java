@@ -0,0 +1,263 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.api.world.DimensionType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Station lookups for other plugins, got from {@link NewU#getStations()}
+ * <p/>
+ * Every method may be called from any thread. Answers cover the stations of loaded worlds and come as {@link StationView}s and unmodifiable lists,
+ * so nothing handed out changes underneath the caller.
+ * Lookups answered from memory come back already done. Those that may read storage run on NewU's query thread, so do not wait on them from the server thread.
+ * <p/>
+ * Recent answers are cached. Any station change drops them all, and any discovery drops the cached discovery lists.
+ * To follow changes rather than asking again, register a {@link StationChangeListener}.
+ *
+ * @author Jason (darkdiplomat)
+ */
+public final class NewUStations {
+    private static final int CACHE_SIZE = 512;
+
+    private final Logger logger;
+    private final ExecutorService executor;
+    private final CopyOnWriteArrayList<StationChangeListener> listeners = new CopyOnWriteArrayList<StationChangeListener>();
+    /** Least recently used answers, guarded by itself */
+    private final Map<Object, Answer> cache = new LinkedHashMap<Object, Answer>(64, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Answer> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private final AtomicLong stationChanges = new AtomicLong();
+    private final AtomicLong discoveryChanges = new AtomicLong();
+
+    NewUStations(Logger logger) {
+        this.logger = logger;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            private final ThreadFactory backing = Executors.defaultThreadFactory();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = backing.newThread(runnable);
+                thread.setName("NewU-Queries");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Finds the station closest to a point, however far off
+     *
+     * @return the station, or {@code null} if the world has none
+     */
+    public final Future<StationView> nearest(final String world, final DimensionType dimension, final double x, final double y, final double z) {
+        return answer(Arrays.<Object>asList("nearest", world, dimension, x, y, z), false, false, new Callable<StationView>() {
+            @Override
+            public StationView call() {
+                NewUStation station = NewU.tracker.nearestStation(world, dimension, x, y, z);
+                return station != null ? new StationView(station) : null;
+            }
+        });
+    }
+
+    /**
+     * Finds a station by its name
+     *
+     * @return the station, or {@code null} if there is none by that name in a loaded world
+     */
+    public final Future<StationView> byName(final String name) {
+        return answer(Arrays.<Object>asList("name", name), false, false, new Callable<StationView>() {
+            @Override
+            public StationView call() {
+                NewUStation station = NewU.tracker.station(name);
+                return station != null ? new StationView(station) : null;
+            }
+        });
+    }
+
+    /**
+     * Gets the stations a player discovered, online or not
+     */
+    public final Future<List<StationView>> discoveredBy(final UUID player) {
+        return answer(Arrays.<Object>asList("discovered", player), true, true, new Callable<List<StationView>>() {
+            @Override
+            public List<StationView> call() {
+                List<NewUStation> stations = NewU.tracker.discoveredBy(player);
+                List<StationView> views = new ArrayList<StationView>(stations.size());
+                for (NewUStation station : stations) {
+                    views.add(new StationView(station));
+                }
+                return Collections.unmodifiableList(views);
+            }
+        });
+    }
+
+    public final void addListener(StationChangeListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public final void removeListener(StationChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Gives the cached answer if nothing it depends on changed since, or works it out and caches it
+     *
+     * @param discoveries
+     *         {@code true} if discoveries change the answer as well as stations
+     * @param slow
+     *         {@code true} to work it out on the query thread rather than the caller's
+     */
+    private <T> Future<T> answer(final Object key, boolean discoveries, boolean slow, final Callable<T> query) {
+        // Read before looking so an answer worked out across a change is never taken as current
+        final long stations = stationChanges.get();
+        final long found = discoveries ? discoveryChanges.get() : -1;
+        synchronized (cache) {
+            Answer cached = cache.get(key);
+            if (cached != null && cached.stations == stations && cached.discoveries == found) {
+                @SuppressWarnings("unchecked")
+                T value = (T) cached.value;
+                return done(value);
+            }
+        }
+        FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                T value = query.call();
+                synchronized (cache) {
+                    cache.put(key, new Answer(value, stations, found));
+                }
+                return value;
+            }
+        });
+        if (slow && !executor.isShutdown()) {
+            executor.execute(task);
+        }
+        else {
+            task.run();
+        }
+        return task;
+    }
+
+    private static <T> Future<T> done(final T value) {
+        FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() {
+                return value;
+            }
+        });
+        task.run();
+        return task;
+    }
+
+    final void stationAdded(NewUStation station) {
+        stationChanges.incrementAndGet();
+        tell('A', station, null);
+    }
+
+    final void stationRemoved(NewUStation station) {
+        stationChanges.incrementAndGet();
+        tell('R', station, null);
+    }
+
+    final void stationDiscovered(NewUStation station, UUID player) {
+        discoveryChanges.incrementAndGet();
+        tell('D', station, player);
+    }
+
+    /**
+     * Drops cached answers after a world's stations came or went
+     */
+    final void worldChanged() {
+        stationChanges.incrementAndGet();
+    }
+
+    private void tell(final char kind, NewUStation station, final UUID player) {
+        if (listeners.isEmpty() || executor.isShutdown()) {
+            return;
+        }
+        final StationView view = new StationView(station);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (StationChangeListener listener : listeners) {
+                    try {
+                        if (kind == 'A') {
+                            listener.stationAdded(view);
+                        }
+                        else if (kind == 'R') {
+                            listener.stationRemoved(view);
+                        }
+                        else {
+                            listener.stationDiscovered(view, player);
+                        }
+                    }
+                    catch (RuntimeException rex) {
+                        logger.log(Level.WARNING, "A station listener failed...", rex);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Finishes the lookups and calls already queued, then stops the query thread
+     */
+    final void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Answer {
+        final Object value;
+        final long stations;
+        final long discoveries;
+
+        Answer(Object value, long stations, long discoveries) {
+            this.value = value;
+            this.stations = stations;
+            this.discoveries = discoveries;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+/**
+ * JMX view of the NewU {@link Metrics}, registered as {@code net.visualillusionsent.newu:type=Stats}
+ *
+ * @author Jason (darkdiplomat)
+ */
+public interface NewUStatsMXBean {
+
+    /**
+     * Gets the latency of each hook handler, lookup, snapshot write and economy call
+     */
+    TimerSnapshot[] getTimers();
+
+    /**
+     * Gets the station and respawn lookups per second, averaged since the plugin started
+     */
+    double getLookupsPerSecond();
+
+    /**
+     * Gets the station changes waiting to be written to the journals
+     */
+    long getPersistenceBacklog();
+
+    /**
+     * Gets the respawn fees waiting to be collected
+     */
+    long getSettlementBacklog();
+}
@@ -0,0 +1,67 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.api.world.DimensionType;
+
+/**
+ * Identifies the stations of one world and dimension, and names their files
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class PartitionKey {
+    private final String world;
+    private final DimensionType dimension;
+    private final String name;
+
+    PartitionKey(String world, DimensionType dimension) {
+        this.world = world;
+        this.dimension = dimension;
+        this.name = world.concat("_").concat(dimension.getName());
+    }
+
+    final String getWorld() {
+        return world;
+    }
+
+    final DimensionType getDimension() {
+        return dimension;
+    }
+
+    /**
+     * Gets the base file name for this partition, {@code world_DIMENSION}
+     */
+    final String getName() {
+        return name;
+    }
+
+    @Override
+    public final boolean equals(Object obj) {
+        return obj instanceof PartitionKey && ((PartitionKey) obj).name.equals(name);
+    }
+
+    @Override
+    public final int hashCode() {
+        return name.hashCode();
+    }
+
+    @Override
+    public final String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns player {@link UUID}s to dense ints so stations can store discoverers compactly
+ * <p/>
+ * Ids are handed out in order starting at 0 and never reused for the life of the process.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class PlayerIds {
+    private static final ConcurrentHashMap<UUID, Integer> ids = new ConcurrentHashMap<UUID, Integer>();
+    private static volatile UUID[] uuids = new UUID[256];
+    private static int next;
+
+    private PlayerIds() {
+    }
+
+    /**
+     * Gets the id for the given UUID, assigning a new one if needed
+     */
+    static int intern(UUID uuid) {
+        Integer id = ids.get(uuid);
+        if (id != null) {
+            return id;
+        }
+        synchronized (PlayerIds.class) {
+            id = ids.get(uuid);
+            if (id != null) {
+                return id;
+            }
+            int assigned = next++;
+            UUID[] current = uuids;
+            if (assigned == current.length) {
+                UUID[] grown = new UUID[current.length << 1];
+                System.arraycopy(current, 0, grown, 0, current.length);
+                current = grown;
+            }
+            current[assigned] = uuid;
+            uuids = current;
+            ids.put(uuid, assigned);
+            return assigned;
+        }
+    }
+
+    /**
+     * Gets the id for the given UUID without assigning one
+     *
+     * @return the id or -1 if the UUID was never interned
+     */
+    static int idOf(UUID uuid) {
+        Integer id = ids.get(uuid);
+        return id == null ? -1 : id;
+    }
+
+    static UUID uuidOf(int id) {
+        return uuids[id];
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.api.world.World;
+
+import java.util.UUID;
+
+/**
+ * Per-player state for the respawn and discovery hooks
+ * <p/>
+ * Positions are kept as primitives so the move check does not allocate.
+ * Access is synchronized on the session itself, which is uncontended unless a player's hooks hop between world threads.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class PlayerSession {
+    private static final double RECHECK_DISTANCE_SQ = 10 * 10;
+
+    private final UUID uuid;
+    private World world;
+    private int blockX, blockY, blockZ;
+    private double checkX, checkY, checkZ;
+    private boolean checked;
+    // Batched discovery: where a queued player was last seen, and where the check before was made
+    private World dueWorld;
+    private double dueX, dueY, dueZ;
+    private double fromX, fromY, fromZ;
+    private boolean dueFresh, queued;
+    private String[] pending;
+    private FeeQuote quote;
+
+    PlayerSession(UUID uuid) {
+        this.uuid = uuid;
+    }
+
+    final UUID getUUID() {
+        return uuid;
+    }
+
+    /**
+     * Records a move and decides whether a station check is due
+     * <p/>
+     * Moves within the same block are dropped straight away.
+     * Otherwise a check is due on the first move, after changing worlds, or once more than 10 blocks from the last check.
+     *
+     * @return {@code true} if the caller should check for a nearby station
+     */
+    final synchronized boolean moved(World world, double x, double y, double z) {
+        int bX = (int) Math.floor(x), bY = (int) Math.floor(y), bZ = (int) Math.floor(z);
+        if (checked && world == this.world && bX == blockX && bY == blockY && bZ == blockZ) {
+            return false;
+        }
+        blockX = bX;
+        blockY = bY;
+        blockZ = bZ;
+        if (checked && world == this.world) {
+            double dx = x - checkX, dy = y - checkY, dz = z - checkZ;
+            if (dx * dx + dy * dy + dz * dz <= RECHECK_DISTANCE_SQ) {
+                return false;
+            }
+        }
+        this.world = world;
+        checkX = x;
+        checkY = y;
+        checkZ = z;
+        checked = true;
+        return true;
+    }
+
+    /**
+     * Records a move for a station check on a later tick, taking the place of {@link #moved} when discoveries are batched
+     * <p/>
+     * While queued, later moves only update where the check will be made.
+     *
+     * @return {@code true} if the player now has to be queued for a check
+     */
+    final synchronized boolean deferred(World world, double x, double y, double z) {
+        boolean joining = !queued;
+        if (joining) {
+            // Joins, respawns and world changes have no distance to go by
+            boolean fresh = !checked || world != this.world;
+            double fromX = checkX, fromY = checkY, fromZ = checkZ;
+            if (!moved(world, x, y, z)) {
+                return false;
+            }
+            queued = true;
+            dueFresh = fresh;
+            this.fromX = fromX;
+            this.fromY = fromY;
+            this.fromZ = fromZ;
+        }
+        else if (world != dueWorld) {
+            dueFresh = true;
+        }
+        dueWorld = world;
+        dueX = x;
+        dueY = y;
+        dueZ = z;
+        return joining;
+    }
+
+    /**
+     * Gets the squared distance a queued player moved since their last check, the largest possible for a player with nothing to go by
+     */
+    final synchronized double travelledSq() {
+        if (dueFresh) {
+            return Double.MAX_VALUE;
+        }
+        double dx = dueX - fromX, dy = dueY - fromY, dz = dueZ - fromZ;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Takes the player off the queue and moves the last check to where they are now
+     *
+     * @param position
+     *         receives the x, y and z to check at
+     *
+     * @return the world to check in, or {@code null} if the player is no longer queued
+     */
+    final synchronized World takeDue(double[] position) {
+        if (!queued) {
+            return null;
+        }
+        queued = false;
+        World due = dueWorld;
+        dueWorld = null;
+        world = due;
+        checkX = position[0] = dueX;
+        checkY = position[1] = dueY;
+        checkZ = position[2] = dueZ;
+        return due;
+    }
+
+    /** Drops any queued check, the player having left */
+    final synchronized void left() {
+        queued = false;
+        dueWorld = null;
+    }
+
+    /** Forces the next move to run a station check */
+    final synchronized void invalidate() {
+        checked = false;
+        world = null;
+    }
+
+    /**
+     * Holds the respawn messages, and the fee if one is due, until the player is back in the world
+     */
+    final synchronized void setPending(String[] messages, FeeQuote quote) {
+        pending = messages;
+        this.quote = quote;
+    }
+
+    final synchronized boolean hasPending() {
+        return pending != null || quote != null;
+    }
+
+    /** Retrieves and clears the pending respawn messages */
+    final synchronized String[] takePending() {
+        String[] messages = pending;
+        pending = null;
+        return messages;
+    }
+
+    /** Retrieves and clears the pending fee quote */
+    final synchronized FeeQuote takeQuote() {
+        FeeQuote taken = quote;
+        quote = null;
+        return taken;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.api.entity.living.humanoid.Player;
+import net.canarymod.api.world.World;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link PlayerSession}s of online players, and the per-move discovery check built on them
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class PlayerSessions {
+    private final ConcurrentHashMap<UUID, PlayerSession> sessions = new ConcurrentHashMap<UUID, PlayerSession>();
+
+    /**
+     * Gets the player's session, starting one if needed
+     */
+    final PlayerSession session(Player player) {
+        PlayerSession session = sessions.get(player.getUUID());
+        if (session == null) {
+            PlayerSession created = new PlayerSession(player.getUUID());
+            session = sessions.putIfAbsent(player.getUUID(), created);
+            if (session == null) {
+                session = created;
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Gets the player's session without starting one
+     */
+    final PlayerSession get(UUID uuid) {
+        return sessions.get(uuid);
+    }
+
+    final void remove(UUID uuid) {
+        PlayerSession session = sessions.remove(uuid);
+        if (session != null) {
+            session.left();
+        }
+    }
+
+    final int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Counts the sessions still holding respawn messages or a fee
+     */
+    final int pending() {
+        int count = 0;
+        for (PlayerSession session : sessions.values()) {
+            if (session.hasPending()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Handles a player move, discovering the nearby station if a check is due and the player has not found it yet
+     *
+     * @return the newly discovered station, or {@code null}
+     */
+    final NewUStation moved(Player player, World world, double x, double y, double z) {
+        return session(player).moved(world, x, y, z) ? discover(player, world, x, y, z) : null;
+    }
+
+    /**
+     * Discovers the station near the given spot if the player has not found it yet
+     *
+     * @return the newly discovered station, or {@code null}
+     */
+    static NewUStation discover(Player player, World world, double x, double y, double z) {
+        NewUStation closest = NewU.tracker.getClosestStation(world, x, y, z);
+        if (closest != null && !NewU.tracker.hasDiscovered(closest, player) && NewU.tracker.discover(closest, player)) {
+            return closest;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Carries {@link StationReplicator} batches between servers
+ * <p/>
+ * Batches are opaque bytes. A transport delivers each batch a peer published once, in the order that peer published them,
+ * and never hands a server back its own. Batches may be lost if a server is away for longer than the transport keeps them.
+ * Both calls are made from the replication thread only.
+ *
+ * @author Jason (darkdiplomat)
+ */
+abstract class ReplicationTransport {
+
+    /**
+     * Gets a name to describe this transport in the log
+     */
+    abstract String getName();
+
+    /**
+     * Sends a batch to every peer
+     */
+    abstract void publish(byte[] batch) throws IOException;
+
+    /**
+     * Gets the batches peers published since the last call
+     */
+    abstract List<byte[]> receive() throws IOException;
+
+    void close() {
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.api.entity.living.humanoid.Player;
+import net.canarymod.api.world.position.Location;
+
+/**
+ * Spreads respawns over the discovered stations near the closest one
+ * <p/>
+ * Any discovered station no more than the slack further away than the closest is a candidate.
+ * Candidates that already had the capped number of arrivals this second are passed over while another has room,
+ * and of the rest the one with the fewest arrivals in the window wins, the closer one on a tie.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class RespawnBalancer {
+
+    private RespawnBalancer() {
+    }
+
+    /**
+     * Picks the station to send the player to and counts the arrival there
+     *
+     * @param closest
+     *         the closest station the player has discovered
+     * @param discovered
+     *         every station the player has discovered
+     * @param current
+     *         the filter for stations that are still in place
+     */
+    static NewUStation choose(NewUSettings settings, Player player, NewUStation closest, NewUStation[] discovered, StationGrid.Filter current) {
+        long second = System.currentTimeMillis() / 1000;
+        NewUStation chosen = closest;
+        int cap = settings.balanceCap;
+        if (settings.balanceSlack > 0) {
+            double x = player.getX(), y = player.getY(), z = player.getZ();
+            double reach = distance(closest, x, y, z) + settings.balanceSlack;
+            Location anchor = closest.getStationLocation();
+            boolean roomy = false;
+            int fewest = Integer.MAX_VALUE;
+            double nearest = Double.MAX_VALUE;
+            for (NewUStation candidate : discovered) {
+                Location loc = candidate.getStationLocation();
+                if (loc.getType() != anchor.getType() || !loc.getWorldName().equals(anchor.getWorldName())) {
+                    continue;
+                }
+                double dist = distance(candidate, x, y, z);
+                if (dist > reach || !current.accept(candidate)) {
+                    continue;
+                }
+                ArrivalWindow arrivals = candidate.arrivals();
+                boolean room = cap <= 0 || arrivals.recent(second, 1) < cap;
+                if (roomy && !room) {
+                    continue;
+                }
+                int recent = arrivals.recent(second, settings.balanceWindow);
+                if ((room && !roomy) || recent < fewest || (recent == fewest && dist < nearest)) {
+                    roomy = room;
+                    fewest = recent;
+                    nearest = dist;
+                    chosen = candidate;
+                }
+            }
+        }
+        chosen.arrivals().record(second);
+        return chosen;
+    }
+
+    private static double distance(NewUStation station, double x, double y, double z) {
+        Location loc = station.getStationLocation();
+        double dx = loc.getX() - x, dy = loc.getY() - y, dz = loc.getZ() - z;
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+}
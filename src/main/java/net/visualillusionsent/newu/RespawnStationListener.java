@@ -17,38 +17,41 @@
  */
 package net.visualillusionsent.newu;
 
-import net.canarymod.Canary;
-import net.canarymod.api.chat.ChatComponent;
 import net.canarymod.api.entity.living.humanoid.Player;
+import net.canarymod.api.world.blocks.Block;
 import net.canarymod.api.world.position.Location;
-import net.canarymod.api.world.position.Vector3D;
 import net.canarymod.chat.MessageReceiver;
 import net.canarymod.commandsys.Command;
 import net.canarymod.commandsys.CommandDependencyException;
 import net.canarymod.hook.HookHandler;
+import net.canarymod.hook.player.BlockDestroyHook;
+import net.canarymod.hook.player.BlockPlaceHook;
+import net.canarymod.hook.player.ConnectionHook;
 import net.canarymod.hook.player.DisconnectionHook;
 import net.canarymod.hook.player.PlayerMoveHook;
 import net.canarymod.hook.player.PlayerRespawnedHook;
 import net.canarymod.hook.player.PlayerRespawningHook;
+import net.canarymod.hook.system.LoadWorldHook;
+import net.canarymod.hook.system.UnloadWorldHook;
 import net.canarymod.plugin.PluginListener;
 import net.canarymod.plugin.Priority;
-import net.visualillusionsent.minecraft.plugin.ChatFormat;
-import net.visualillusionsent.minecraft.plugin.canary.VisualIllusionsCanaryPluginInformationCommand;
 
-import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import net.visualillusionsent.minecraft.plugin.canary.VisualIllusionsCanaryPluginInformationCommand;
 
 /**
  * @author Jason (darkdiplomat)
  */
 public final class RespawnStationListener extends VisualIllusionsCanaryPluginInformationCommand implements PluginListener {
-    private final String newU = ChatFormat.LIGHT_GRAY + "[" + ChatFormat.YELLOW + "NewU" + ChatFormat.LIGHT_GRAY + "] " + ChatFormat.CYAN + "%s";
-    private final HashMap<Player, String[]> pending;
-    private final HashMap<Player, Vector3D> cache;
+    private final String newU = StationMessages.PREFIX + "%s";
+    private final StationHooks hooks;
 
     public RespawnStationListener(NewU newu) throws CommandDependencyException {
         super(newu);
-        pending = new HashMap<Player, String[]>();
-        cache = new HashMap<Player, Vector3D>();
+        hooks = new StationHooks();
         newu.registerListener(this);
         newu.registerCommands(this, false);
     }
@@ -57,7 +60,7 @@ public final class RespawnStationListener extends VisualIllusionsCanaryPluginInf
             aliases = { "newu" },
             description = "NewU Information",
             permissions = { "" },
-            toolTip = "/newu [set <name>|del]",
+            toolTip = "/newu [set <name>|del <name>|import <file>|export <file>|convert <format>|stats]",
             version = 2
     )
     public final void newu(MessageReceiver receiver, String[] args) {
@@ -104,64 +107,147 @@ public final class RespawnStationListener extends VisualIllusionsCanaryPluginInf
         }
     }
 
+    @Command(
+            aliases = { "import" },
+            description = "Adds every NewU station listed in a CSV or JSON file in the NewU config folder",
+            permissions = { "newu.import" },
+            toolTip = "/newu import <file.csv|file.json>",
+            parent = "newu",
+            min = 1
+    )
+    public final void importNewU(MessageReceiver receiver, String[] args) {
+        File file = StationTransfer.file(args[0]);
+        if (file == null || !file.isFile()) {
+            receiver.notice("No such .csv or .json file in the NewU config folder...");
+            return;
+        }
+        List<String> problems = new ArrayList<String>();
+        List<NewUStation> batch;
+        try {
+            batch = StationTransfer.read(file, problems);
+        }
+        catch (IOException ioex) {
+            receiver.notice("Failed to read " + file.getName() + ": " + ioex.getMessage());
+            return;
+        }
+        catch (RuntimeException rex) {
+            receiver.notice("Failed to read " + file.getName() + ": " + rex.getMessage());
+            return;
+        }
+        if (problems.isEmpty() && NewU.tracker.addStations(batch, problems)) {
+            receiver.message(String.format(newU, "Imported " + batch.size() + " stations."));
+            return;
+        }
+        receiver.notice("Nothing imported, " + problems.size() + " problem(s) in " + file.getName() + ":");
+        for (int index = 0; index < Math.min(problems.size(), 5); index++) {
+            receiver.notice(problems.get(index));
+        }
+    }
+
+    @Command(
+            aliases = { "export" },
+            description = "Writes the NewU stations of loaded worlds to a CSV or JSON file in the NewU config folder",
+            permissions = { "newu.export" },
+            toolTip = "/newu export <file.csv|file.json>",
+            parent = "newu",
+            min = 1
+    )
+    public final void exportNewU(MessageReceiver receiver, String[] args) {
+        File file = StationTransfer.file(args[0]);
+        if (file == null) {
+            receiver.notice("Give a plain file name ending in .csv or .json...");
+            return;
+        }
+        try {
+            receiver.message(String.format(newU, "Exported " + NewU.tracker.exportStations(file) + " stations to " + file.getName()));
+        }
+        catch (IOException ioex) {
+            receiver.notice("Failed to write " + file.getName() + ": " + ioex.getMessage());
+        }
+    }
+
+    @Command(
+            aliases = { "convert" },
+            description = "Exports the NewU stations to another storage format",
+            permissions = { "newu.convert" },
+            toolTip = "/newu convert <json|binary>",
+            parent = "newu",
+            min = 1
+    )
+    public final void convertNewU(MessageReceiver receiver, String[] args) {
+        SnapshotFormat format = StationTracker.snapshotFormat(args[0]);
+        if (format != null) {
+            NewU.tracker.export(format);
+            receiver.message(String.format(newU, "Exporting stations of loaded worlds as " + format.extension() + " files. Edits to them are picked up on the next start, if made while the server is stopped."));
+        }
+        else {
+            receiver.notice("Unknown format... (json or binary)");
+        }
+    }
+
+    @Command(
+            aliases = { "stats" },
+            description = "Shows NewU timings and backlogs",
+            permissions = { "newu.stats" },
+            toolTip = "/newu stats",
+            parent = "newu"
+    )
+    public final void statsNewU(MessageReceiver receiver, String[] args) {
+        Metrics stats = new Metrics();
+        for (TimerSnapshot timer : stats.getTimers()) {
+            receiver.message(String.format(newU, timer));
+        }
+        receiver.message(String.format(newU, String.format("Lookups: %.1f/s, Journal backlog: %d, Unsettled fees: %d", stats.getLookupsPerSecond(), stats.getPersistenceBacklog(), stats.getSettlementBacklog())));
+    }
+
     @HookHandler(priority = Priority.PASSIVE) // Cause, you know, being last makes us the only thing
     public final void respawn(PlayerRespawningHook hook) {
-        Player player = hook.getPlayer();
-        if (player.hasPermission("newu.use")) {
-            if (NewU.cfg.isCharging()) {
-                if (TransactionHandler.hasAmount(player)) {
-                    pending.put(player, new String[]{ NewU.tracker.getRandomMessage(), String.format("Fee: %.2f", TransactionHandler.percentage(player)) });
-                }
-                else if (NewU.cfg.isWaivable()) {
-                    pending.put(player, new String[]{ NewU.tracker.getRandomMessage(), "Fee: Waived" });
-                }
-                else {
-                    return; // Not Waivable and no money? Do not pass go, do not collect $200
-                }
-            }
-            else {
-                pending.put(player, new String[]{ NewU.tracker.getRandomMessage(), "Fee: None" });
-            }
-            cache.remove(player);
-            Location respawn = NewU.tracker.getClosestRespawn(player);
-            if (respawn != null) {
-                hook.setRespawnLocation(respawn);
-            }
+        Location respawn = hooks.respawning(hook.getPlayer());
+        if (respawn != null) {
+            hook.setRespawnLocation(respawn);
         }
     }
 
     @HookHandler(priority = Priority.PASSIVE)
     public final void respawned(PlayerRespawnedHook hook) {
-        Player player = hook.getPlayer();
-        if (pending.containsKey(player)) {
-            TransactionHandler.charge(player);
-            String[] msgs = pending.remove(player);
-            player.message(String.format(newU, msgs[0]));
-            player.message(String.format(newU, msgs[1]));
-        }
+        hooks.respawned(hook.getPlayer());
     }
 
     @HookHandler(priority = Priority.PASSIVE)
     public final void nearStation(PlayerMoveHook hook) {
-        Player player = hook.getPlayer();
-        if (!cache.containsKey(player) || cache.get(player).getDistance(hook.getTo()) > 10) {
-            cache.put(player, hook.getTo());
-            NewUStation closest = NewU.tracker.getClosestStation(player);
-            if (closest != null && !closest.hasDiscoveredNoAdd(player)) {
-                closest.addDiscoverer(player.getName());
-                ChatComponent title = Canary.factory().getChatComponentFactory().newChatComponent(closest.getName() + " Discovered");
-                ChatComponent subtitle = Canary.factory().getChatComponentFactory().newChatComponent("A NewU Station");
-                title.getChatStyle().setColor(Canary.factory().getChatComponentFactory().colorAqua());
-                subtitle.getChatStyle().setColor(Canary.factory().getChatComponentFactory().colorYellow());
-                player.showTitle(title, subtitle);
-                player.message(String.format(newU, "You have discovered NewU Station: '" + closest.getName() + "'."));
-            }
-        }
+        Location to = hook.getTo();
+        hooks.moved(hook.getPlayer(), to.getX(), to.getY(), to.getZ());
+    }
+
+    @HookHandler(priority = Priority.PASSIVE)
+    public final void blockPlaced(BlockPlaceHook hook) {
+        Block block = hook.getBlockPlaced();
+        NewU.tracker.blockChanged(block.getWorld(), block.getX(), block.getY(), block.getZ());
+    }
+
+    @HookHandler(priority = Priority.PASSIVE)
+    public final void blockDestroyed(BlockDestroyHook hook) {
+        Block block = hook.getBlock();
+        NewU.tracker.blockChanged(block.getWorld(), block.getX(), block.getY(), block.getZ());
+    }
+
+    @HookHandler(priority = Priority.PASSIVE)
+    public final void worldLoaded(LoadWorldHook hook) {
+        NewU.tracker.worldLoaded(hook.getWorld());
+    }
+
+    @HookHandler(priority = Priority.PASSIVE)
+    public final void worldUnloaded(UnloadWorldHook hook) {
+        NewU.tracker.worldUnloaded(hook.getWorld());
+    }
+
+    @HookHandler(priority = Priority.PASSIVE)
+    public final void joined(ConnectionHook hook) {
+        hooks.joined(hook.getPlayer());
     }
 
     @HookHandler(priority = Priority.PASSIVE)
     public final void disconnected(DisconnectionHook hook) {
-        cache.remove(hook.getPlayer());
-        pending.remove(hook.getPlayer());
+        hooks.disconnected(hook.getPlayer().getUUID());
     }
 }
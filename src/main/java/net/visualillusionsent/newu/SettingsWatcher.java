@@ -0,0 +1,41 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.tasks.ServerTask;
+import net.canarymod.tasks.TaskOwner;
+
+/**
+ * Checks every few seconds whether settings.cfg changed and reloads it
+ * <p/>
+ * Polls the file's modification time, which is a single stat call.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class SettingsWatcher extends ServerTask {
+    private static final int PERIOD_TICKS = 60;
+
+    SettingsWatcher(TaskOwner owner) {
+        super(owner, PERIOD_TICKS, true);
+    }
+
+    @Override
+    public final void run() {
+        NewU.cfg.reloadIfModified();
+    }
+}
@@ -0,0 +1,419 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.Canary;
+import net.canarymod.api.entity.living.humanoid.Player;
+import net.canarymod.tasks.ServerTask;
+import net.canarymod.tasks.ServerTaskManager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects respawn fees from the economy plugin off the server thread
+ * <p/>
+ * Debits are queued from the respawn hooks and settled by a background thread.
+ * Debits for the same player and world that are waiting together go to the economy plugin as one.
+ * If the economy refuses the sum, the fees in it are tried one by one so only those the player cannot pay are waived.
+ * A debit is retried with a doubling delay only when the economy provider marks its failure as retryable, as anything else may already have taken the money.
+ * Anything unsettled is kept in unsettled.txt so it survives a restart.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class SettlementQueue {
+    private static final String CHARSET = "UTF-8";
+    private static final int MAX_ATTEMPTS = 6;
+    private static final long FIRST_BACKOFF = 1000, MAX_BACKOFF = 60000;
+
+    private final NewU newU;
+    private final Logger logger;
+    private final File file;
+    private final ConcurrentLinkedQueue<Debit> incoming = new ConcurrentLinkedQueue<Debit>();
+    private final ScheduledThreadPoolExecutor executor;
+    private final Runnable settleTask = new Runnable() {
+        @Override
+        public void run() {
+            settle();
+        }
+    };
+
+    // Settlement thread only
+    private final Map<String, Debit> batches = new LinkedHashMap<String, Debit>();
+    private boolean stored;
+    private long retryAt;
+    private volatile int waiting;
+
+    SettlementQueue(NewU newU) {
+        this.newU = newU;
+        this.logger = newU.getPluginLogger();
+        this.file = new File(NewU.cfgDir, "unsettled.txt");
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            private final ThreadFactory backing = Executors.defaultThreadFactory();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = backing.newThread(runnable);
+                thread.setName("NewU-Settlement");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        load();
+    }
+
+    /**
+     * Queues a quoted fee for collection
+     */
+    final void submit(Player player, FeeQuote quote) {
+        if (!quote.isPayable()) {
+            return;
+        }
+        incoming.add(new Debit(quote.getUUID(), player.getName(), quote.getWorldFqName(), quote.getAmount(), 0, 0));
+        TransactionHandler.forget(quote.getUUID()); // About to change
+        if (!executor.isShutdown()) {
+            executor.execute(settleTask);
+        }
+    }
+
+    private void settle() {
+        drainIncoming();
+        long now = System.currentTimeMillis();
+        long nextRetry = Long.MAX_VALUE;
+        if (retryAt <= now) {
+            retryAt = 0;
+        }
+        boolean changed = false;
+        Iterator<Debit> pending = batches.values().iterator();
+        while (pending.hasNext()) {
+            Debit debit = pending.next();
+            if (debit.notBefore > now) {
+                nextRetry = Math.min(nextRetry, debit.notBefore);
+                continue;
+            }
+            TransactionHandler.DebitResult result;
+            boolean threw = false;
+            try {
+                result = TransactionHandler.debit(debit.uuid, debit.name, debit.world, debit.amount);
+            }
+            catch (RuntimeException rex) {
+                result = failed(debit, rex);
+                threw = true;
+            }
+            changed = true;
+            if (result == TransactionHandler.DebitResult.RETRY && debit.attempts + 1 < MAX_ATTEMPTS) {
+                long backoff = Math.min(MAX_BACKOFF, FIRST_BACKOFF << debit.attempts);
+                Debit retry = debit.retryAt(now + backoff);
+                batches.put(debit.key(), retry);
+                nextRetry = Math.min(nextRetry, retry.notBefore);
+                continue;
+            }
+            pending.remove();
+            TransactionHandler.forget(debit.uuid);
+            if (result == TransactionHandler.DebitResult.FAILED && !threw && debit.fees.length > 1) {
+                debit = separately(debit); // Refused outright, so nothing was taken yet
+            }
+            if (result != TransactionHandler.DebitResult.DONE && debit.fees.length > 0) {
+                logger.warning(String.format("Could not collect %d respawn fee(s) of %.2f in total from %s", debit.fees.length, debit.amount, debit.name));
+                notifyWaived(debit);
+            }
+        }
+        waiting = batches.size();
+        if (changed || !batches.isEmpty() != stored) {
+            store();
+        }
+        if (nextRetry != Long.MAX_VALUE && (retryAt == 0 || nextRetry < retryAt) && !executor.isShutdown()) {
+            retryAt = nextRetry; // One wake up is enough, however many debits are waiting
+            executor.schedule(settleTask, Math.max(0, nextRetry - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Gets the number of fees waiting to be collected
+     */
+    final long backlog() {
+        return incoming.size() + waiting;
+    }
+
+    /**
+     * Works out what a debit that threw comes to, retrying only if the economy provider says nothing was taken
+     */
+    private TransactionHandler.DebitResult failed(Debit debit, RuntimeException rex) {
+        if (NewU.economy.isRetryable(rex)) {
+            logger.log(Level.FINE, "Economy error while collecting a respawn fee from " + debit.name, rex);
+            return TransactionHandler.DebitResult.RETRY;
+        }
+        logger.log(Level.WARNING, "Economy error while collecting a respawn fee from " + debit.name + ", waiving it rather than risk charging twice", rex);
+        return TransactionHandler.DebitResult.FAILED;
+    }
+
+    /**
+     * Collects the fees of a refused merged debit one at a time
+     *
+     * @return the fees that could not be collected, none if all were
+     */
+    private Debit separately(Debit merged) {
+        Debit waived = merged.without();
+        for (double fee : merged.fees) {
+            TransactionHandler.DebitResult result;
+            try {
+                result = TransactionHandler.debit(merged.uuid, merged.name, merged.world, fee);
+            }
+            catch (RuntimeException rex) {
+                logger.log(Level.WARNING, "Economy error while collecting a respawn fee from " + merged.name + ", waiving it", rex);
+                result = TransactionHandler.DebitResult.FAILED;
+            }
+            if (result != TransactionHandler.DebitResult.DONE) {
+                waived = waived.plus(fee);
+            }
+        }
+        return waived;
+    }
+
+    /**
+     * Moves newly queued debits into the batches, adding them to any debit already waiting for the same player and world
+     */
+    private void drainIncoming() {
+        Debit debit;
+        while ((debit = incoming.poll()) != null) {
+            Debit waiting = batches.get(debit.key());
+            batches.put(debit.key(), waiting == null ? debit : waiting.plus(debit.amount));
+        }
+    }
+
+    /**
+     * Tells the player, if still online, that the fee they were shown was not taken after all
+     */
+    private void notifyWaived(final Debit debit) {
+        ServerTaskManager.addTask(new ServerTask(newU, 0) {
+            @Override
+            public void run() {
+                Player player = Canary.getServer().getPlayerFromUUID(debit.uuid);
+                if (player != null) {
+                    player.message(StationMessages.PREFIX + (debit.fees.length == 1
+                            ? String.format("Your respawn fee of %.2f could not be collected and was waived", debit.amount)
+                            : String.format("%d of your respawn fees, %.2f in total, could not be collected and were waived", debit.fees.length, debit.amount)));
+                }
+            }
+        });
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split("\t");
+                    if (parts.length == 4) {
+                        incoming.add(new Debit(UUID.fromString(parts[0]), parts[1], parts[2], Double.parseDouble(parts[3]), 0, 0));
+                    }
+                }
+            }
+            finally {
+                reader.close();
+            }
+            stored = true;
+            if (!incoming.isEmpty()) {
+                logger.info("Resuming " + incoming.size() + " unsettled respawn fees");
+                executor.execute(settleTask);
+            }
+        }
+        catch (Exception ex) {
+            logger.log(Level.SEVERE, "Failed to read unsettled respawn fees...", ex);
+        }
+    }
+
+    /**
+     * Writes the unsettled debits, or removes the file once there are none
+     */
+    private void store() {
+        if (batches.isEmpty()) {
+            stored = !file.delete() && file.exists();
+            return;
+        }
+        File temp = new File(NewU.cfgDir, "unsettled.txt.tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            Writer writer = new OutputStreamWriter(out, CHARSET);
+            for (Debit debit : batches.values()) {
+                write(writer, debit);
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        catch (IOException ioex) {
+            logger.log(Level.SEVERE, "Failed to store unsettled respawn fees...", ioex);
+            return;
+        }
+        finally {
+            try {
+                if (out != null)
+                    out.close();
+            }
+            catch (IOException ioex) {
+                //IGNORED
+            }
+        }
+        if (!temp.renameTo(file) && (!file.delete() || !temp.renameTo(file))) {
+            logger.severe("Failed to replace unsettled.txt");
+            return;
+        }
+        stored = true;
+    }
+
+    /**
+     * Adds debits after whatever the settlement thread last stored, for when that thread cannot be stopped and its batches are out of reach
+     */
+    private void append(Iterable<Debit> debits) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file, true);
+            Writer writer = new OutputStreamWriter(out, CHARSET);
+            for (Debit debit : debits) {
+                write(writer, debit);
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        catch (IOException ioex) {
+            logger.log(Level.SEVERE, "Failed to store unsettled respawn fees...", ioex);
+        }
+        finally {
+            try {
+                if (out != null)
+                    out.close();
+            }
+            catch (IOException ioex) {
+                //IGNORED
+            }
+        }
+    }
+
+    private static void write(Writer writer, Debit debit) throws IOException {
+        // A line per fee, so merged fees stay countable across a restart
+        for (double fee : debit.fees) {
+            writer.write(debit.uuid + "\t" + debit.name + "\t" + debit.world + "\t" + fee + "\n");
+        }
+    }
+
+    /**
+     * Stops the settlement thread and stores whatever it did not get to
+     */
+    final void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+                executor.awaitTermination(5, TimeUnit.SECONDS);
+            }
+        }
+        catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+        }
+        if (!executor.isTerminated()) {
+            // The batches still belong to the settlement thread, only what it never picked up is safe to take
+            ArrayList<Debit> queued = new ArrayList<Debit>();
+            Debit debit;
+            while ((debit = incoming.poll()) != null) {
+                queued.add(debit);
+            }
+            logger.warning("The settlement thread did not stop, storing only the " + queued.size() + " respawn fees it had not picked up yet");
+            if (!queued.isEmpty()) {
+                append(queued);
+            }
+            return;
+        }
+        drainIncoming();
+        if (!batches.isEmpty()) {
+            logger.info("Storing " + batches.size() + " unsettled respawn fees for the next start");
+        }
+        store();
+    }
+
+    /** Fees waiting to be collected, replaced rather than changed as they are merged or retried */
+    private static final class Debit {
+        private static final double[] NONE = new double[0];
+
+        private final UUID uuid;
+        private final String name, world;
+        /** Sum of the fees */
+        private final double amount;
+        /** Each fee merged in, kept so a refused or waived debit can be told apart into the fees the player was shown */
+        private final double[] fees;
+        private final int attempts;
+        private final long notBefore;
+
+        Debit(UUID uuid, String name, String world, double amount, int attempts, long notBefore) {
+            this(uuid, name, world, amount, new double[]{ amount }, attempts, notBefore);
+        }
+
+        private Debit(UUID uuid, String name, String world, double amount, double[] fees, int attempts, long notBefore) {
+            this.uuid = uuid;
+            this.name = name;
+            this.world = world;
+            this.amount = amount;
+            this.fees = fees;
+            this.attempts = attempts;
+            this.notBefore = notBefore;
+        }
+
+        final String key() {
+            return uuid + "\t" + world;
+        }
+
+        final Debit plus(double more) {
+            double[] merged = Arrays.copyOf(fees, fees.length + 1);
+            merged[fees.length] = more;
+            return new Debit(uuid, name, world, amount + more, merged, attempts, notBefore);
+        }
+
+        /** The same player and world with no fees */
+        final Debit without() {
+            return new Debit(uuid, name, world, 0, NONE, attempts, notBefore);
+        }
+
+        final Debit retryAt(long time) {
+            return new Debit(uuid, name, world, amount, fees, attempts + 1, time);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+
+/**
+ * A file format for station snapshots
+ *
+ * @author Jason (darkdiplomat)
+ */
+interface SnapshotFormat {
+
+    /**
+     * Gets the file extension for snapshots in this format, including the dot
+     */
+    String extension();
+
+    /**
+     * Reads a snapshot, handing each station to the sink
+     *
+     * @return the journal generation the snapshot was written for
+     */
+    int read(File file, StationSink sink) throws IOException;
+
+    /**
+     * Writes a snapshot of the given stations
+     * <p/>
+     * The stream is left open so the caller can sync it.
+     */
+    void write(OutputStream out, Collection<NewUStation> stations, int generation) throws IOException;
+}
@@ -0,0 +1,181 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.api.world.World;
+import net.canarymod.api.world.blocks.Block;
+import net.canarymod.api.world.blocks.BlockMaterial;
+import net.canarymod.api.world.blocks.BlockType;
+import net.canarymod.api.world.position.Location;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Safe respawn spots around a {@link NewUStation}, checked ahead of time
+ * <p/>
+ * Spots are searched for in a ring 2 to 4 blocks out from the station, within 2 blocks up or down.
+ * A spot is safe when the block below is solid and not harmful, and the two blocks for the player are clear.
+ * The spots are an immutable packed array, so respawns pick one without locking while a refresh builds the next.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class SpawnPool {
+    static final int SIZE = 8;
+    private static final int[] EMPTY = new int[0];
+    private static final int[] HEIGHTS = { 0, 1, -1, 2, -2 };
+    private static final int INNER = 2, OUTER = 4;
+    private static final int[][] RING = ring(INNER, OUTER);
+    /**
+     * Farthest a block that decides whether a spot is safe can be from the station: the ring's corner columns,
+     * with the floor under the lowest spot and the head room over the highest, plus a block for the station sitting mid-block
+     */
+    static final double REACH = Math.sqrt(2 * (OUTER + 1) * (OUTER + 1) + (maxHeight() + 2) * (maxHeight() + 2));
+    private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    /** x, y, z of each spot */
+    private volatile int[] spots = EMPTY;
+    private final AtomicBoolean queued = new AtomicBoolean();
+    private final AtomicBoolean urgent = new AtomicBoolean();
+
+    /**
+     * Picks one of the spots at random
+     *
+     * @return a new location at the spot, or {@code null} if no safe spot is known
+     */
+    final Location draw(Location station) {
+        int[] current = spots;
+        if (current.length == 0) {
+            return null;
+        }
+        int spot = RANDOM.get().nextInt(current.length / 3) * 3;
+        Location location = new Location(current[spot] + 0.5, current[spot + 1], current[spot + 2] + 0.5);
+        location.setWorldName(station.getWorldName());
+        location.setType(station.getType());
+        return location;
+    }
+
+    final int size() {
+        return spots.length / 3;
+    }
+
+    /**
+     * Claims this pool for a refresh, so a station is queued once however many changes arrive before it is looked at
+     *
+     * @param changed
+     *         {@code true} for a refresh after something changed around the station, which is queued apart from the periodic sweep
+     *
+     * @return {@code true} if the caller should queue the station
+     */
+    final boolean claim(boolean changed) {
+        return (changed ? urgent : queued).compareAndSet(false, true);
+    }
+
+    /**
+     * Checks the pool still waits in the given queue, rather than having been refreshed from the other one meanwhile
+     */
+    final boolean claimed(boolean changed) {
+        return (changed ? urgent : queued).get();
+    }
+
+    final void unclaim() {
+        queued.set(false);
+        urgent.set(false);
+    }
+
+    /**
+     * Searches the blocks around the station again
+     * <p/>
+     * Must be called on the server thread. Stations in unloaded chunks are left as they are.
+     *
+     * @return {@code false} if the chunk was not loaded
+     */
+    final boolean refresh(World world, Location station) {
+        unclaim();
+        int baseX = station.getBlockX(), baseY = station.getBlockY(), baseZ = station.getBlockZ();
+        if (!world.isChunkLoaded(baseX, baseY, baseZ)) {
+            return false;
+        }
+        int[] found = new int[SIZE * 3];
+        int count = 0;
+        // Start somewhere different for each station so the spots are not all on one side
+        int start = (baseX * 31 + baseZ) & 0x7FFFFFFF;
+        for (int index = 0; index < RING.length && count < SIZE; index++) {
+            int[] offset = RING[(start + index * 7) % RING.length];
+            int x = baseX + offset[0], z = baseZ + offset[1];
+            for (int dy : HEIGHTS) {
+                int y = baseY + dy;
+                if (y > 0 && y < 255 && safe(world, x, y, z)) {
+                    found[count * 3] = x;
+                    found[count * 3 + 1] = y;
+                    found[count * 3 + 2] = z;
+                    count++;
+                    break;
+                }
+            }
+        }
+        int[] result = new int[count * 3];
+        System.arraycopy(found, 0, result, 0, result.length);
+        spots = result;
+        return true;
+    }
+
+    private static boolean safe(World world, int x, int y, int z) {
+        Block floor = world.getBlockAt(x, y - 1, z);
+        return floor.getBlockMaterial().isSolid() && !harmful(floor.getType()) && clear(world.getBlockAt(x, y, z)) && clear(world.getBlockAt(x, y + 1, z));
+    }
+
+    private static boolean clear(Block block) {
+        BlockMaterial material = block.getBlockMaterial();
+        return !material.isSolid() && !material.isLiquid() && !harmful(block.getType());
+    }
+
+    private static boolean harmful(BlockType type) {
+        return type == BlockType.Lava || type == BlockType.LavaFlowing || type == BlockType.Fire || type == BlockType.Cactus || type == BlockType.Web;
+    }
+
+    private static int maxHeight() {
+        int max = 0;
+        for (int dy : HEIGHTS) {
+            max = Math.max(max, Math.abs(dy));
+        }
+        return max;
+    }
+
+    /**
+     * Gets the column offsets between the given distances on the X/Z plane
+     */
+    private static int[][] ring(int inner, int outer) {
+        int side = outer * 2 + 1, hole = (inner - 1) * 2 + 1;
+        int[][] ring = new int[side * side - hole * hole][];
+        int index = 0;
+        for (int dx = -outer; dx <= outer; dx++) {
+            for (int dz = -outer; dz <= outer; dz++) {
+                if (Math.max(Math.abs(dx), Math.abs(dz)) >= inner) {
+                    ring[index++] = new int[]{ dx, dz };
+                }
+            }
+        }
+        return ring;
+    }
+}
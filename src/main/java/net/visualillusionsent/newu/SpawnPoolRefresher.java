@@ -0,0 +1,106 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.Canary;
+import net.canarymod.api.world.World;
+import net.canarymod.api.world.WorldManager;
+import net.canarymod.api.world.position.Location;
+import net.canarymod.tasks.ServerTask;
+import net.canarymod.tasks.TaskOwner;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Server task that keeps the {@link SpawnPool}s up to date
+ * <p/>
+ * Stations are queued when added or loaded and when a block changes next to them, and all of them again every refresh interval.
+ * Block access is only safe on the server thread, so rather than a background thread the work is spread over ticks, every half second.
+ * Changes have a queue of their own that is worked first, so an edit next to a station does not wait behind the sweep,
+ * and the sweep takes as many stations a run as it needs to get through all of them before the next one starts.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class SpawnPoolRefresher extends ServerTask {
+    private static final int PER_RUN = 4, PERIOD_TICKS = 10;
+    private static final long PERIOD_MILLIS = PERIOD_TICKS * 50L;
+
+    private final ConcurrentLinkedQueue<NewUStation> changed = new ConcurrentLinkedQueue<NewUStation>();
+    private final ConcurrentLinkedQueue<NewUStation> sweep = new ConcurrentLinkedQueue<NewUStation>();
+    private long nextSweep;
+    private int sweepQueued, sweepPerRun = PER_RUN;
+
+    SpawnPoolRefresher(TaskOwner owner) {
+        super(owner, PERIOD_TICKS, true);
+        this.nextSweep = System.currentTimeMillis() + NewU.cfg.settings().spawnRefreshInterval;
+    }
+
+    /**
+     * Queues a station something changed around for a refresh, ahead of the sweep, unless it is queued for one already
+     */
+    final void enqueue(NewUStation station) {
+        if (station.spawnPool().claim(true)) {
+            changed.add(station);
+        }
+    }
+
+    @Override
+    public final void run() {
+        if (System.currentTimeMillis() >= nextSweep) {
+            long interval = NewU.cfg.settings().spawnRefreshInterval;
+            nextSweep = System.currentTimeMillis() + interval;
+            for (StationPartition partition : NewU.tracker.loadedPartitions()) {
+                for (NewUStation station : partition.stations()) {
+                    if (station.spawnPool().claim(false)) {
+                        sweep.add(station);
+                        sweepQueued++;
+                    }
+                }
+            }
+            // Stations still waiting from the last pass are only queued once but are in the count, so a late sweep catches up
+            long runs = Math.max(1, interval / PERIOD_MILLIS);
+            sweepPerRun = (int) Math.max(PER_RUN, (sweepQueued + runs - 1) / runs);
+        }
+        WorldManager worlds = Canary.getServer().getWorldManager();
+        refresh(worlds, changed, true, PER_RUN);
+        refresh(worlds, sweep, false, sweepPerRun);
+    }
+
+    private void refresh(WorldManager worlds, ConcurrentLinkedQueue<NewUStation> queue, boolean changes, int limit) {
+        for (int done = 0; done < limit; ) {
+            NewUStation station = queue.poll();
+            if (station == null) {
+                return;
+            }
+            if (!changes) {
+                sweepQueued--;
+            }
+            if (!station.spawnPool().claimed(changes)) {
+                continue; // Refreshed from the other queue since
+            }
+            done++;
+            Location anchor = station.getStationLocation();
+            if (!worlds.worldIsLoaded(anchor.getWorldName(), anchor.getType())) {
+                station.spawnPool().unclaim(); // Gone with its world, it is queued again when the world loads
+                continue;
+            }
+            World world = worlds.getWorld(anchor.getWorldName(), anchor.getType(), false);
+            station.spawnPool().refresh(world, anchor);
+        }
+    }
+}
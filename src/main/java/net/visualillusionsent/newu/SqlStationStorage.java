@@ -0,0 +1,567 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.api.world.DimensionType;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Station storage in an embedded H2 database, config/NewU/stations/newu.h2.db
+ * <p/>
+ * Stations are indexed by world and discoveries by player, so loading a world reads only its own rows
+ * and only the discoveries of players who are online; everyone else's are read when they join.
+ * Changes are queued and written in one transaction when the storage thread writes.
+ * <p/>
+ * The database runs inside the server process on local disk and needs nothing else.
+ * All access goes through one connection, locked for each use.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class SqlStationStorage extends StationStorage {
+    private static final String DRIVER = "org.h2.Driver";
+
+    private final StationTracker tracker;
+    private final File directory;
+    private final Connection connection;
+    private final ConcurrentLinkedQueue<Object[]> queue = new ConcurrentLinkedQueue<Object[]>();
+    /** Players whose discoveries are kept in memory, as UUID strings */
+    private final Set<String> online = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /** Changes from a transaction that failed, retried ahead of the queue; guarded by connection */
+    private final List<Object[]> failed = new ArrayList<Object[]>();
+    /** Changes queued or failed and not yet committed, so the backlog can be read without waiting on a write */
+    private final AtomicLong uncommitted = new AtomicLong();
+
+    private SqlStationStorage(StationTracker tracker, File directory, Connection connection, Logger logger) {
+        super(logger);
+        this.tracker = tracker;
+        this.directory = directory;
+        this.connection = connection;
+    }
+
+    /**
+     * Opens the database, creating it and bringing in any station files found alongside it the first time
+     *
+     * @return the storage, or {@code null} if the database could not be opened
+     */
+    static SqlStationStorage open(StationTracker tracker, SnapshotFormat format, File directory, Logger logger) {
+        Connection connection;
+        boolean created;
+        try {
+            Class.forName(DRIVER);
+            connection = DriverManager.getConnection("jdbc:h2:file:" + new File(directory, "newu").getAbsolutePath(), "sa", "");
+            connection.setAutoCommit(false);
+            created = createTables(connection);
+        }
+        catch (ClassNotFoundException cnfex) {
+            logger.severe("H2 is not on the server classpath, falling back to files storage");
+            return null;
+        }
+        catch (SQLException sqlex) {
+            logger.log(Level.SEVERE, "Failed to open the station database, falling back to files storage...", sqlex);
+            return null;
+        }
+        SqlStationStorage storage = new SqlStationStorage(tracker, directory, connection, logger);
+        if (created) {
+            storage.importFiles(format);
+        }
+        return storage;
+    }
+
+    /**
+     * @return {@code true} if the tables were created just now
+     */
+    private static boolean createTables(Connection connection) throws SQLException {
+        ResultSet tables = connection.getMetaData().getTables(null, null, "STATIONS", null);
+        boolean exists;
+        try {
+            exists = tables.next();
+        }
+        finally {
+            tables.close();
+        }
+        if (exists) {
+            return false;
+        }
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute("CREATE TABLE stations (name VARCHAR(255) PRIMARY KEY, world VARCHAR(255) NOT NULL, dimension VARCHAR(32) NOT NULL, x DOUBLE NOT NULL, y DOUBLE NOT NULL, z DOUBLE NOT NULL)");
+            statement.execute("CREATE INDEX stations_partition ON stations (world, dimension)");
+            statement.execute("CREATE TABLE discoveries (station VARCHAR(255) NOT NULL, player VARCHAR(36) NOT NULL, PRIMARY KEY (station, player))");
+            statement.execute("CREATE INDEX discoveries_player ON discoveries (player)");
+            connection.commit();
+        }
+        catch (SQLException sqlex) {
+            connection.rollback();
+            throw sqlex;
+        }
+        finally {
+            statement.close();
+        }
+        return true;
+    }
+
+    /**
+     * Copies the stations of an install that used files storage until now into the new database
+     * <p/>
+     * The files are left in place, but are no longer kept up to date.
+     */
+    private void importFiles(SnapshotFormat format) {
+        boolean found = false;
+        File[] files = directory.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            found |= !file.getName().startsWith("newu.");
+        }
+        if (!found) {
+            return; // Only the database itself
+        }
+        StationPersistence persistence = new StationPersistence(tracker, format, directory, logger);
+        try {
+            HashSet<PartitionKey> keys = new HashSet<PartitionKey>(persistence.readIndex().values());
+            int stations = 0;
+            for (PartitionKey key : keys) {
+                StationPartition partition = new StationPartition(key, directory);
+                persistence.load(partition);
+                storeAll(partition);
+                persistence.close(partition);
+                stations += partition.stations().size();
+            }
+            if (stations > 0) {
+                logger.info("Imported " + stations + " stations from files, which are no longer updated while storage.backend is h2");
+            }
+        }
+        finally {
+            persistence.shutdown();
+        }
+    }
+
+    @Override
+    final String getName() {
+        return "h2";
+    }
+
+    /**
+     * Reads the partition's stations along with the discoveries of players who are online
+     */
+    @Override
+    final void load(StationPartition partition) {
+        try {
+            synchronized (connection) {
+                writePending();
+                read(partition.getKey(), partition, online);
+                partition.setLoaded(); // Under the lock so a player joining now either was seen above or will find these stations
+            }
+        }
+        catch (SQLException sqlex) {
+            logger.log(Level.SEVERE, "Failed to load stations for " + partition.getKey() + "...", sqlex);
+            partition.setLoaded();
+        }
+    }
+
+    /**
+     * @param players
+     *         the players whose discoveries to read, or {@code null} for all of them
+     */
+    private void read(PartitionKey key, StationSink sink, Set<String> players) throws SQLException {
+        PreparedStatement stations = connection.prepareStatement("SELECT name, x, y, z FROM stations WHERE world = ? AND dimension = ?");
+        try {
+            stations.setString(1, key.getWorld());
+            stations.setString(2, key.getDimension().getName());
+            ResultSet rows = stations.executeQuery();
+            while (rows.next()) {
+                sink.restoreStation(new NewUStation(rows.getString(1), key.getWorld(), key.getDimension(), rows.getDouble(2), rows.getDouble(3), rows.getDouble(4)));
+            }
+            rows.close();
+        }
+        finally {
+            stations.close();
+        }
+        if (players != null && players.isEmpty()) {
+            return;
+        }
+        PreparedStatement discoveries = connection.prepareStatement("SELECT d.station, d.player FROM discoveries d JOIN stations s ON s.name = d.station WHERE s.world = ? AND s.dimension = ?");
+        try {
+            discoveries.setString(1, key.getWorld());
+            discoveries.setString(2, key.getDimension().getName());
+            ResultSet rows = discoveries.executeQuery();
+            while (rows.next()) {
+                String player = rows.getString(2);
+                if (players == null || players.contains(player)) {
+                    sink.restoreDiscovery(rows.getString(1), player);
+                }
+            }
+            rows.close();
+        }
+        finally {
+            discoveries.close();
+        }
+    }
+
+    @Override
+    final void unload(StationPartition partition) {
+        // Every change is already queued, and the queue does not care which world it came from
+    }
+
+    @Override
+    final void stationAdded(StationPartition partition, NewUStation station) {
+        pend(added(station));
+        markDirty();
+    }
+
+    @Override
+    final void stationsAdded(StationPartition partition, Collection<NewUStation> stations) {
+        for (NewUStation station : stations) {
+            pend(added(station));
+        }
+        markDirty();
+    }
+
+    private void pend(Object[] change) {
+        queue.add(change);
+        uncommitted.incrementAndGet();
+    }
+
+    private static Object[] added(NewUStation station) {
+        return new Object[]{ "A", station.getName(), station.getStationLocation().getWorldName(), station.getStationLocation().getType().getName(), station.getStationLocation().getX(), station.getStationLocation().getY(), station.getStationLocation().getZ() };
+    }
+
+    @Override
+    final void stationRemoved(StationPartition partition, String name) {
+        pend(new Object[]{ "R", name });
+        markDirty();
+    }
+
+    @Override
+    final void stationRemoved(PartitionKey key, String name) {
+        pend(new Object[]{ "R", name });
+        markDirty();
+    }
+
+    @Override
+    final void stationDiscovered(StationPartition partition, NewUStation station, UUID uuid) {
+        pend(new Object[]{ "D", station.getName(), uuid.toString() });
+        markDirty();
+    }
+
+    /**
+     * Writes the partition's stations and all their discoverers in one transaction
+     */
+    @Override
+    final void storeAll(StationPartition partition) {
+        for (NewUStation station : partition.stations()) {
+            pend(added(station));
+            for (String discoverer : station.discoverers()) {
+                pend(new Object[]{ "D", station.getName(), discoverer });
+            }
+        }
+        synchronized (connection) {
+            writePending();
+        }
+    }
+
+    @Override
+    final Map<String, PartitionKey> readIndex() {
+        HashMap<String, PartitionKey> names = new HashMap<String, PartitionKey>();
+        HashMap<String, PartitionKey> keys = new HashMap<String, PartitionKey>();
+        try {
+            synchronized (connection) {
+                writePending();
+                Statement statement = connection.createStatement();
+                try {
+                    ResultSet rows = statement.executeQuery("SELECT name, world, dimension FROM stations");
+                    while (rows.next()) {
+                        String keyName = rows.getString(2).concat("\t").concat(rows.getString(3));
+                        PartitionKey key = keys.get(keyName);
+                        if (key == null) {
+                            key = new PartitionKey(rows.getString(2), DimensionType.fromName(rows.getString(3)));
+                            keys.put(keyName, key);
+                        }
+                        names.put(rows.getString(1), key);
+                    }
+                    rows.close();
+                }
+                finally {
+                    statement.close();
+                }
+            }
+        }
+        catch (SQLException sqlex) {
+            logger.log(Level.SEVERE, "Failed to read station names from the database...", sqlex);
+        }
+        return names;
+    }
+
+    @Override
+    final boolean loadsDiscoveriesPerPlayer() {
+        return true;
+    }
+
+    /**
+     * Reads the stations the player discovered, and from now on reads the player's discoveries along with every world that loads
+     * <p/>
+     * Discoveries stored under the player's name from before UUIDs were tracked are moved over to the UUID.
+     */
+    @Override
+    final Collection<String> discoveries(UUID uuid, String name) {
+        String player = uuid.toString();
+        List<String> stations = new ArrayList<String>();
+        try {
+            synchronized (connection) {
+                writePending(); // On the storage thread anyway, and it leaves nothing of the player's unwritten
+                online.add(player);
+                PreparedStatement statement = connection.prepareStatement("SELECT station, player FROM discoveries WHERE player = ? OR player = ?");
+                try {
+                    statement.setString(1, player);
+                    statement.setString(2, name);
+                    ResultSet rows = statement.executeQuery();
+                    while (rows.next()) {
+                        String station = rows.getString(1);
+                        stations.add(station);
+                        if (!rows.getString(2).equals(player)) {
+                            pend(new Object[]{ "D", station, player });
+                            pend(new Object[]{ "L", station, name });
+                        }
+                    }
+                    rows.close();
+                }
+                finally {
+                    statement.close();
+                }
+            }
+        }
+        catch (SQLException sqlex) {
+            logger.log(Level.SEVERE, "Failed to read the discoveries of " + name + "...", sqlex);
+        }
+        if (!queue.isEmpty()) {
+            markDirty();
+        }
+        return stations;
+    }
+
+    @Override
+    final Collection<String> storedDiscoveries(UUID uuid) {
+        List<String> stations = new ArrayList<String>();
+        try {
+            synchronized (connection) {
+                PreparedStatement statement = connection.prepareStatement("SELECT station FROM discoveries WHERE player = ?");
+                try {
+                    statement.setString(1, uuid.toString());
+                    ResultSet rows = statement.executeQuery();
+                    while (rows.next()) {
+                        stations.add(rows.getString(1));
+                    }
+                    rows.close();
+                }
+                finally {
+                    statement.close();
+                }
+            }
+        }
+        catch (SQLException sqlex) {
+            logger.log(Level.SEVERE, "Failed to read the discoveries of " + uuid + "...", sqlex);
+        }
+        return stations;
+    }
+
+    @Override
+    final void playerLeft(UUID uuid) {
+        online.remove(uuid.toString());
+    }
+
+    /**
+     * Reads every station of the loaded worlds back with all of their discoverers, then writes them as snapshots
+     */
+    @Override
+    final void export(final SnapshotFormat format) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                for (StationPartition loaded : tracker.loadedPartitions()) {
+                    StationPartition copy = new StationPartition(loaded.getKey(), directory);
+                    try {
+                        synchronized (connection) {
+                            writePending();
+                            read(loaded.getKey(), copy, null);
+                        }
+                    }
+                    catch (SQLException sqlex) {
+                        logger.log(Level.SEVERE, "Failed to read stations for " + loaded.getKey() + "...", sqlex);
+                        continue;
+                    }
+                    copy.setLoaded();
+                    store(copy, format, 0);
+                }
+                logger.info("Stations exported as " + format.extension() + " files in " + directory.getPath());
+            }
+        });
+    }
+
+    @Override
+    final long backlog() {
+        return uncommitted.get();
+    }
+
+    @Override
+    final void flush() {
+        synchronized (connection) {
+            writePending();
+            if (!failed.isEmpty()) {
+                markDirty(); // Try again later
+            }
+        }
+    }
+
+    /**
+     * Writes everything queued so far in one transaction, batching each run of the same kind of change
+     * <p/>
+     * Must hold the connection lock.
+     */
+    private void writePending() {
+        List<Object[]> batch = new ArrayList<Object[]>(failed);
+        failed.clear();
+        Object[] change;
+        while ((change = queue.poll()) != null) {
+            batch.add(change);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        PreparedStatement addStation = null, removeDiscoveries = null, removeStation = null, addDiscovery = null, removeDiscovery = null;
+        try {
+            addStation = connection.prepareStatement("MERGE INTO stations (name, world, dimension, x, y, z) KEY (name) VALUES (?, ?, ?, ?, ?, ?)");
+            removeDiscoveries = connection.prepareStatement("DELETE FROM discoveries WHERE station = ?");
+            removeStation = connection.prepareStatement("DELETE FROM stations WHERE name = ?");
+            addDiscovery = connection.prepareStatement("MERGE INTO discoveries (station, player) KEY (station, player) VALUES (?, ?)");
+            removeDiscovery = connection.prepareStatement("DELETE FROM discoveries WHERE station = ? AND player = ?");
+            String kind = null;
+            for (Object[] pending : batch) {
+                if (kind != null && !kind.equals(pending[0])) {
+                    // Keep changes in order, the same station may be added, removed and added again
+                    executeBatch(kind, addStation, removeDiscoveries, removeStation, addDiscovery, removeDiscovery);
+                }
+                kind = (String) pending[0];
+                if (kind.equals("A")) {
+                    for (int index = 1; index < pending.length; index++) {
+                        addStation.setObject(index, pending[index]);
+                    }
+                    addStation.addBatch();
+                }
+                else if (kind.equals("R")) {
+                    removeDiscoveries.setString(1, (String) pending[1]);
+                    removeDiscoveries.addBatch();
+                    removeStation.setString(1, (String) pending[1]);
+                    removeStation.addBatch();
+                }
+                else if (kind.equals("D")) {
+                    addDiscovery.setString(1, (String) pending[1]);
+                    addDiscovery.setString(2, (String) pending[2]);
+                    addDiscovery.addBatch();
+                }
+                else if (kind.equals("L")) {
+                    removeDiscovery.setString(1, (String) pending[1]);
+                    removeDiscovery.setString(2, (String) pending[2]);
+                    removeDiscovery.addBatch();
+                }
+            }
+            executeBatch(kind, addStation, removeDiscoveries, removeStation, addDiscovery, removeDiscovery);
+            connection.commit();
+            uncommitted.addAndGet(-batch.size());
+        }
+        catch (SQLException sqlex) {
+            logger.log(Level.SEVERE, "Failed to write " + batch.size() + " station changes to the database...", sqlex);
+            try {
+                connection.rollback();
+            }
+            catch (SQLException rollback) {
+                // IGNORED
+            }
+            failed.addAll(batch);
+        }
+        finally {
+            close(addStation, removeDiscoveries, removeStation, addDiscovery, removeDiscovery);
+        }
+    }
+
+    private static void executeBatch(String kind, PreparedStatement addStation, PreparedStatement removeDiscoveries, PreparedStatement removeStation, PreparedStatement addDiscovery, PreparedStatement removeDiscovery) throws SQLException {
+        if (kind.equals("A")) {
+            addStation.executeBatch();
+        }
+        else if (kind.equals("R")) {
+            removeDiscoveries.executeBatch();
+            removeStation.executeBatch();
+        }
+        else if (kind.equals("D")) {
+            addDiscovery.executeBatch();
+        }
+        else if (kind.equals("L")) {
+            removeDiscovery.executeBatch();
+        }
+    }
+
+    private static void close(PreparedStatement... statements) {
+        for (PreparedStatement statement : statements) {
+            try {
+                if (statement != null)
+                    statement.close();
+            }
+            catch (SQLException sqlex) {
+                //IGNORED
+            }
+        }
+    }
+
+    /**
+     * Stops the background writer, writes what is left and closes the database
+     */
+    @Override
+    final void shutdown() {
+        stopWriter();
+        synchronized (connection) {
+            writePending();
+            if (!failed.isEmpty()) {
+                logger.severe(failed.size() + " station changes could not be written to the database and are lost");
+            }
+            try {
+                connection.close();
+            }
+            catch (SQLException sqlex) {
+                logger.log(Level.WARNING, "Failed to close the station database...", sqlex);
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import java.util.UUID;
+
+/**
+ * Told of changes to NewU's stations, registered through {@link NewUStations#addListener}
+ * <p/>
+ * Calls come one at a time in the order the changes happened, on NewU's query thread and never the server thread.
+ * A listener that needs the server thread schedules its own task. Changes loaded from storage or another world loading are not reported.
+ *
+ * @author Jason (darkdiplomat)
+ */
+public interface StationChangeListener {
+
+    /**
+     * Called after a station is set, here or on a server sharing stations with this one
+     */
+    void stationAdded(StationView station);
+
+    /**
+     * Called after a station is removed
+     */
+    void stationRemoved(StationView station);
+
+    /**
+     * Called after a player discovers a station for the first time
+     */
+    void stationDiscovered(StationView station, UUID player);
+}
@@ -0,0 +1,275 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.api.world.position.Location;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Uniform grid of the {@link NewUStation}s in one world and dimension
+ * <p/>
+ * Stations are bucketed into square columns of {@link #CELL_SIZE} blocks on the X/Z plane.
+ * Nearest queries walk outward ring by ring and stop once a ring can no longer hold anything closer than the best match so far.
+ * <p/>
+ * Not safe to change while others read it; once a grid is published in a {@link StationRegistry} it is never changed again.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class StationGrid {
+    private static final int CELL_SHIFT = 6;
+    static final int CELL_SIZE = 1 << CELL_SHIFT;
+
+    private final Map<Long, NewUStation[]> cells;
+    private NewUStation[] all;
+    // Bounds only ever grow, which keeps them conservative after removals
+    private int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, minZ = Integer.MAX_VALUE, maxZ = Integer.MIN_VALUE;
+
+    StationGrid() {
+        this.cells = new HashMap<Long, NewUStation[]>();
+        this.all = new NewUStation[0];
+    }
+
+    private StationGrid(StationGrid original) {
+        this.cells = new HashMap<Long, NewUStation[]>(original.cells);
+        this.all = original.all;
+        this.minX = original.minX;
+        this.maxX = original.maxX;
+        this.minZ = original.minZ;
+        this.maxZ = original.maxZ;
+    }
+
+    /**
+     * Copies the grid for changing, leaving this one as it is
+     * <p/>
+     * Cheap as cell arrays are never changed in place, only replaced, so the copy shares them.
+     */
+    final StationGrid copy() {
+        return new StationGrid(this);
+    }
+
+    final void add(NewUStation station) {
+        Location loc = station.getStationLocation();
+        int cellX = cellOf(loc.getX()), cellZ = cellOf(loc.getZ());
+        Long key = cellKey(cellX, cellZ);
+        cells.put(key, append(cells.get(key), station));
+        all = append(all, station);
+        minX = Math.min(minX, cellX);
+        maxX = Math.max(maxX, cellX);
+        minZ = Math.min(minZ, cellZ);
+        maxZ = Math.max(maxZ, cellZ);
+    }
+
+    final boolean remove(NewUStation station) {
+        Location loc = station.getStationLocation();
+        Long key = cellKey(cellOf(loc.getX()), cellOf(loc.getZ()));
+        NewUStation[] cell = cells.get(key);
+        if (cell == null || indexOf(cell, station) < 0) {
+            return false;
+        }
+        if (cell.length == 1) {
+            cells.remove(key);
+        }
+        else {
+            cells.put(key, without(cell, station));
+        }
+        all = without(all, station);
+        return true;
+    }
+
+    /**
+     * Finds the closest accepted station to the given point
+     *
+     * @param radius
+     *         the maximum distance to consider, or a negative value for no limit
+     * @param filter
+     *         the filter stations must pass, or {@code null} to accept all
+     *
+     * @return the closest station or {@code null} if none qualified
+     */
+    final NewUStation nearest(double x, double y, double z, double radius, Filter filter) {
+        if (all.length == 0) {
+            return null;
+        }
+        int cellX = cellOf(x), cellZ = cellOf(z);
+        int maxRing = Math.max(Math.max(cellX - minX, maxX - cellX), Math.max(cellZ - minZ, maxZ - cellZ));
+        double bestSq = Double.MAX_VALUE;
+        if (radius >= 0) {
+            bestSq = radius * radius;
+            maxRing = Math.min(maxRing, (int) (radius / CELL_SIZE) + 1);
+        }
+        NewUStation best = null;
+        int visited = 0;
+        for (int ring = 0; ring <= maxRing; ring++) {
+            if (ring > 1) {
+                // The point can sit anywhere in its own cell, so ring r is at least (r - 1) cells away
+                double gap = (double) (ring - 1) * CELL_SIZE;
+                if (gap * gap > bestSq) {
+                    break;
+                }
+            }
+            visited += ring == 0 ? 1 : ring * 8;
+            if (visited > all.length * 8) {
+                // Sparse world, walking rings costs more than looking at everything
+                return scan(x, y, z, radius, filter);
+            }
+            for (int dx = -ring; dx <= ring; dx++) {
+                for (int dz = -ring; dz <= ring; dz++) {
+                    if (ring != 0 && Math.abs(dx) != ring && Math.abs(dz) != ring) {
+                        dz = ring - 1; // Skip the interior, it was covered by earlier rings
+                        continue;
+                    }
+                    NewUStation[] cell = cells.get(cellKey(cellX + dx, cellZ + dz));
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (NewUStation station : cell) {
+                        double distSq = distanceSquared(station, x, y, z);
+                        if (distSq <= bestSq && (best == null || distSq < bestSq) && (filter == null || filter.accept(station))) {
+                            bestSq = distSq;
+                            best = station;
+                        }
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Checks whether any station lies strictly closer than the given distance
+     */
+    final boolean anyWithin(double x, double y, double z, double distance) {
+        int cellX = cellOf(x), cellZ = cellOf(z);
+        int reach = (int) (distance / CELL_SIZE) + 1;
+        double limitSq = distance * distance;
+        for (int dx = -reach; dx <= reach; dx++) {
+            for (int dz = -reach; dz <= reach; dz++) {
+                NewUStation[] cell = cells.get(cellKey(cellX + dx, cellZ + dz));
+                if (cell == null) {
+                    continue;
+                }
+                for (NewUStation station : cell) {
+                    if (distanceSquared(station, x, y, z) < limitSq) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collects every accepted station within the given distance
+     */
+    final void within(double x, double y, double z, double radius, Filter filter, List<NewUStation> found) {
+        int cellX = cellOf(x), cellZ = cellOf(z);
+        int reach = (int) (radius / CELL_SIZE) + 1;
+        double limitSq = radius * radius;
+        if ((2L * reach + 1) * (2L * reach + 1) > all.length * 8L) {
+            // Fewer stations than cells to look in
+            for (NewUStation station : all) {
+                if (distanceSquared(station, x, y, z) <= limitSq && (filter == null || filter.accept(station))) {
+                    found.add(station);
+                }
+            }
+            return;
+        }
+        for (int dx = -reach; dx <= reach; dx++) {
+            for (int dz = -reach; dz <= reach; dz++) {
+                NewUStation[] cell = cells.get(cellKey(cellX + dx, cellZ + dz));
+                if (cell == null) {
+                    continue;
+                }
+                for (NewUStation station : cell) {
+                    if (distanceSquared(station, x, y, z) <= limitSq && (filter == null || filter.accept(station))) {
+                        found.add(station);
+                    }
+                }
+            }
+        }
+    }
+
+    private NewUStation scan(double x, double y, double z, double radius, Filter filter) {
+        double bestSq = radius >= 0 ? radius * radius : Double.MAX_VALUE;
+        NewUStation best = null;
+        for (NewUStation station : all) {
+            double distSq = distanceSquared(station, x, y, z);
+            if (distSq <= bestSq && (best == null || distSq < bestSq) && (filter == null || filter.accept(station))) {
+                bestSq = distSq;
+                best = station;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Packs the cell into a key, scrambled by an odd multiplier so keys stay unique but no longer hash to cellX ^ cellZ,
+     * which put the cells of a whole map into a few dozen buckets
+     */
+    private static long cellKey(int cellX, int cellZ) {
+        return (((long) cellX << 32) | (cellZ & 0xFFFFFFFFL)) * 0x9E3779B97F4A7C15L;
+    }
+
+    private static int cellOf(double coord) {
+        return ((int) Math.floor(coord)) >> CELL_SHIFT;
+    }
+
+    private static double distanceSquared(NewUStation station, double x, double y, double z) {
+        Location loc = station.getStationLocation();
+        double dx = loc.getX() - x, dy = loc.getY() - y, dz = loc.getZ() - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private static NewUStation[] append(NewUStation[] array, NewUStation station) {
+        if (array == null) {
+            return new NewUStation[]{ station };
+        }
+        NewUStation[] grown = new NewUStation[array.length + 1];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        grown[array.length] = station;
+        return grown;
+    }
+
+    private static NewUStation[] without(NewUStation[] array, NewUStation station) {
+        int index = indexOf(array, station);
+        if (index < 0) {
+            return array;
+        }
+        NewUStation[] shrunk = new NewUStation[array.length - 1];
+        System.arraycopy(array, 0, shrunk, 0, index);
+        System.arraycopy(array, index + 1, shrunk, index, shrunk.length - index);
+        return shrunk;
+    }
+
+    private static int indexOf(NewUStation[] array, NewUStation station) {
+        for (int index = 0; index < array.length; index++) {
+            if (array[index] == station) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /** Filter applied to candidate stations during a nearest query */
+    interface Filter {
+        boolean accept(NewUStation station);
+    }
+}
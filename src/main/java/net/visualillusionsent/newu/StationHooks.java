@@ -0,0 +1,149 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.api.entity.living.humanoid.Player;
+import net.canarymod.api.world.position.Location;
+
+import java.util.UUID;
+
+/**
+ * What NewU does on the player hooks, apart from the hook objects themselves
+ * <p/>
+ * The {@link RespawnStationListener} unwraps each hook and hands over here, which keeps this usable without a running server.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class StationHooks {
+    private final PlayerSessions sessions = new PlayerSessions();
+
+    /**
+     * Starts bringing in the player's discoveries, which storage may have to read
+     */
+    final void joined(Player player) {
+        NewU.tracker.playerJoined(player.getUUID(), player.getName());
+    }
+
+    /**
+     * Prepares the respawn messages and fee, and picks where the player comes back
+     *
+     * @return the respawn location, or {@code null} to leave it as it is
+     */
+    final Location respawning(Player player) {
+        long start = System.nanoTime();
+        try {
+            if (!player.hasPermission("newu.use")) {
+                return null;
+            }
+            PlayerSession session = sessions.session(player);
+            NewUSettings settings = NewU.cfg.settings();
+            if (settings.charging) {
+                FeeQuote quote = TransactionHandler.quote(player);
+                if (quote.isPayable()) {
+                    session.setPending(new String[]{ NewU.tracker.messages().respawnMessage(player), StationMessages.fee(quote.getAmount()) }, quote);
+                }
+                else if (settings.waivable) {
+                    session.setPending(new String[]{ NewU.tracker.messages().respawnMessage(player), StationMessages.FEE_WAIVED }, null);
+                }
+                else {
+                    return null; // Not Waivable and no money? Do not pass go, do not collect $200
+                }
+            }
+            else {
+                session.setPending(new String[]{ NewU.tracker.messages().respawnMessage(player), StationMessages.FEE_NONE }, null);
+            }
+            session.invalidate();
+            NewU.tracker.discoverAt(player);
+            return NewU.tracker.getClosestRespawn(player);
+        }
+        finally {
+            Metrics.RESPAWNING_HOOK.stop(start);
+        }
+    }
+
+    /**
+     * Sends the messages held since respawning and settles the fee
+     */
+    final void respawned(Player player) {
+        long start = System.nanoTime();
+        try {
+            PlayerSession session = sessions.get(player.getUUID());
+            if (session == null) {
+                return;
+            }
+            FeeQuote quote = session.takeQuote();
+            String[] msgs = session.takePending();
+            if (msgs != null) {
+                if (quote != null) {
+                    TransactionHandler.charge(player, quote);
+                }
+                player.message(msgs[0]);
+                player.message(msgs[1]);
+            }
+        }
+        finally {
+            Metrics.RESPAWNED_HOOK.stop(start);
+        }
+    }
+
+    /**
+     * Discovers the station the player walked up to, if any, or queues the check when discoveries are batched
+     */
+    final void moved(Player player, double x, double y, double z) {
+        long start = System.nanoTime();
+        try {
+            if (!NewU.tracker.discoveriesReady(player)) {
+                return; // Storage is still reading what the player discovered
+            }
+            DiscoveryScheduler scheduler = NewU.discoveryScheduler;
+            if (scheduler != null && NewU.cfg.settings().discoveryBatching) {
+                PlayerSession session = sessions.session(player);
+                if (session.deferred(player.getWorld(), x, y, z)) {
+                    scheduler.enqueue(player, session);
+                }
+                return;
+            }
+            NewUStation closest = sessions.moved(player, player.getWorld(), x, y, z);
+            if (closest != null) {
+                announce(player, closest);
+            }
+        }
+        finally {
+            Metrics.MOVE_HOOK.stop(start);
+        }
+    }
+
+    /**
+     * Shows the player the station they just discovered
+     */
+    static void announce(Player player, NewUStation station) {
+        StationMessages.Discovery discovery = NewU.tracker.messages().discovery(player, station);
+        player.showTitle(discovery.title, discovery.subtitle);
+        player.message(discovery.message);
+    }
+
+    final void disconnected(UUID uuid) {
+        sessions.remove(uuid);
+        NewU.tracker.playerLeft(uuid);
+        TransactionHandler.forget(uuid);
+    }
+
+    final PlayerSessions sessions() {
+        return sessions;
+    }
+}
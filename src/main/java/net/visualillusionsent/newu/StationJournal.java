@@ -0,0 +1,267 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import net.canarymod.api.world.DimensionType;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Append-only log of station changes made since the last snapshot
+ * <p/>
+ * Each line is a small JSON array: {@code ["A",name,world,dimension,x,y,z]} for an added station,
+ * {@code ["R",name]} for a removal and {@code ["D",name,uuid]} for a discovery.
+ * The first line, {@code ["G",generation]}, ties the journal to the snapshot it applies on top of.
+ * <p/>
+ * Events are queued from any thread and appended in batches by the persistence thread.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class StationJournal {
+    private static final String CHARSET = "UTF-8";
+
+    private final File file;
+    private final ConcurrentLinkedQueue<Object[]> queue = new ConcurrentLinkedQueue<Object[]>();
+    private FileOutputStream out;
+    private int generation;
+    private boolean appended;
+
+    StationJournal(File file) {
+        this.file = file;
+    }
+
+    final void added(NewUStation station) {
+        queue.add(new Object[]{ "A", station.getName(), station.getStationLocation().getWorldName(), station.getStationLocation().getType().getName(), station.getStationLocation().getX(), station.getStationLocation().getY(), station.getStationLocation().getZ() });
+    }
+
+    final void removed(String name) {
+        queue.add(new Object[]{ "R", name });
+    }
+
+    final void discovered(NewUStation station, UUID uuid) {
+        queue.add(new Object[]{ "D", station.getName(), uuid.toString() });
+    }
+
+    /**
+     * Checks for events not yet folded into a snapshot
+     */
+    final boolean hasChanges() {
+        return appended || !queue.isEmpty();
+    }
+
+    /**
+     * Gets the number of events waiting to be appended
+     */
+    final int queued() {
+        return queue.size();
+    }
+
+    final int generation() {
+        return generation;
+    }
+
+    final long length() {
+        return file.length();
+    }
+
+    /**
+     * Replays the journal into the sink, provided it belongs to the given snapshot generation or later
+     *
+     * @return the number of events applied
+     *
+     * @throws IOException
+     *         if the journal is damaged; events before the damage have already been applied
+     */
+    final int replay(StationSink sink, int snapshotGeneration) throws IOException {
+        if (!file.exists() || file.length() == 0) {
+            return 0;
+        }
+        int applied = 0;
+        boolean first = true;
+        JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET)));
+        try {
+            reader.setLenient(true);
+            while (reader.peek() != JsonToken.END_DOCUMENT) {
+                reader.beginArray();
+                String type = reader.nextString();
+                if (first) {
+                    first = false;
+                    generation = type.equals("G") ? reader.nextInt() : 0;
+                    if (generation < snapshotGeneration) {
+                        // Left over from before the last compaction, the snapshot already holds all of it
+                        return applied;
+                    }
+                }
+                if (type.equals("G")) {
+                    // Header, already handled
+                }
+                else if (type.equals("A")) {
+                    String name = reader.nextString();
+                    String world = reader.nextString();
+                    DimensionType dimension = DimensionType.fromName(reader.nextString());
+                    sink.restoreStation(new NewUStation(name, world, dimension, reader.nextDouble(), reader.nextDouble(), reader.nextDouble()));
+                    applied++;
+                }
+                else if (type.equals("R")) {
+                    sink.restoreRemoval(reader.nextString());
+                    applied++;
+                }
+                else if (type.equals("D")) {
+                    sink.restoreDiscovery(reader.nextString(), reader.nextString());
+                    applied++;
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue(); // Fields from a newer version
+                }
+                reader.endArray();
+            }
+        }
+        catch (IllegalStateException isex) {
+            throw new IOException("Damaged record after " + applied + " events: " + isex.getMessage());
+        }
+        catch (NumberFormatException nfex) {
+            throw new IOException("Damaged record after " + applied + " events: " + nfex.getMessage());
+        }
+        finally {
+            reader.close();
+        }
+        return applied;
+    }
+
+    /**
+     * Appends everything queued so far and syncs it to disk
+     * <p/>
+     * Events leave the queue only once they are synced, so after a failure the next drain writes them again.
+     * A partly written batch is cut off again where it can be, and replaying an event twice does no harm.
+     */
+    final void drain() throws IOException {
+        if (queue.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        OutputStreamWriter chars = new OutputStreamWriter(buffer, CHARSET);
+        JsonWriter writer = new JsonWriter(chars);
+        writer.setLenient(true);
+        int written = 0;
+        // Only the persistence thread takes from the queue, so the events iterated are the ones at its head
+        for (Object[] event : queue) {
+            writer.beginArray();
+            for (Object value : event) {
+                if (value instanceof Number) {
+                    writer.value((Number) value);
+                }
+                else {
+                    writer.value((String) value);
+                }
+            }
+            writer.endArray();
+            writer.flush();
+            chars.write('\n');
+            written++;
+        }
+        chars.flush();
+        if (out == null) {
+            boolean fresh = !file.exists() || file.length() == 0;
+            out = new FileOutputStream(file, true);
+            if (fresh) {
+                out.write(header(generation));
+            }
+        }
+        long before = out.getChannel().position();
+        try {
+            buffer.writeTo(out);
+            out.getFD().sync();
+        }
+        catch (IOException ioex) {
+            discardFrom(before);
+            throw ioex;
+        }
+        for (; written > 0; written--) {
+            queue.poll();
+        }
+        appended = true;
+    }
+
+    /**
+     * Cuts a failed batch off the end of the journal and closes it, so the next drain reopens it
+     */
+    private void discardFrom(long length) {
+        try {
+            out.getChannel().truncate(length);
+        }
+        catch (IOException ignored) {
+            // Left in place, replay stops at the partial line and reports the journal damaged
+        }
+        try {
+            close();
+        }
+        catch (IOException ignored) {
+            out = null;
+        }
+    }
+
+    /**
+     * Starts a fresh journal for the given generation, discarding the old one
+     * <p/>
+     * Only call once a snapshot of that generation is safely on disk.
+     */
+    final void reset(int generation) throws IOException {
+        close();
+        File temp = new File(file.getPath().concat(".tmp"));
+        FileOutputStream tempOut = new FileOutputStream(temp);
+        try {
+            tempOut.write(header(generation));
+            tempOut.getFD().sync();
+        }
+        finally {
+            tempOut.close();
+        }
+        if (!temp.renameTo(file) && (!file.delete() || !temp.renameTo(file))) {
+            throw new IOException("Failed to replace " + file.getName());
+        }
+        this.generation = generation;
+        appended = false;
+    }
+
+    final void setGeneration(int generation) {
+        this.generation = generation;
+    }
+
+    private static byte[] header(int generation) throws IOException {
+        return ("[\"G\"," + generation + "]\n").getBytes(CHARSET);
+    }
+
+    final void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+}
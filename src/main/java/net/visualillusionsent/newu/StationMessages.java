@@ -0,0 +1,238 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.Canary;
+import net.canarymod.api.chat.ChatComponent;
+import net.canarymod.api.entity.living.humanoid.Player;
+import net.canarymod.api.factory.ChatComponentFactory;
+import net.visualillusionsent.minecraft.plugin.ChatFormat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Player facing messages, rendered once and reused
+ * <p/>
+ * Each locale is read from {@code resources/lang/<locale>.lang} the first time a player using it needs a message.
+ * Plain lines are respawn messages, lines starting with {@code @} are the discovery texts with {@code {station}} for the station's name.
+ * Whatever a locale leaves out comes from en_US.
+ * Discovery titles and messages are built once per station and locale, and dropped when the station is removed.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class StationMessages {
+    static final String PREFIX = ChatFormat.LIGHT_GRAY + "[" + ChatFormat.YELLOW + "NewU" + ChatFormat.LIGHT_GRAY + "] " + ChatFormat.CYAN;
+    static final String FEE_NONE = PREFIX + "Fee: None";
+    static final String FEE_WAIVED = PREFIX + "Fee: Waived";
+    private static final String DEFAULT_LOCALE = "en_US";
+    private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    private final ConcurrentMap<String, Language> languages = new ConcurrentHashMap<String, Language>();
+    private final Logger logger;
+    /** Builds the discovery titles, the server's unless replaced */
+    private volatile ChatComponentFactory chat;
+
+    StationMessages(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Replaces the server's chat factory, for running without a server
+     */
+    final void useChat(ChatComponentFactory chat) {
+        this.chat = chat;
+    }
+
+    /**
+     * Picks one of the respawn messages in the player's language, prefix included
+     */
+    final String respawnMessage(Player player) {
+        String[] lines = language(player.getLocale()).respawn;
+        return lines[RANDOM.get().nextInt(lines.length)];
+    }
+
+    /**
+     * Gets the texts shown to the player on discovering the station
+     */
+    final Discovery discovery(Player player, NewUStation station) {
+        Language language = language(player.getLocale());
+        Discovery discovery = language.stations.get(station.getName());
+        if (discovery == null) {
+            ChatComponentFactory factory = chat;
+            if (factory == null) {
+                chat = factory = Canary.factory().getChatComponentFactory();
+            }
+            discovery = new Discovery(language, station.getName(), factory);
+            Discovery raced = language.stations.putIfAbsent(station.getName(), discovery);
+            if (raced != null) {
+                discovery = raced;
+            }
+        }
+        return discovery;
+    }
+
+    /**
+     * Drops the station's rendered texts
+     */
+    final void forget(String station) {
+        for (Language language : languages.values()) {
+            language.stations.remove(station);
+        }
+    }
+
+    /**
+     * Renders the fee line, the amount to two decimal places
+     */
+    static String fee(double amount) {
+        long cents = Math.round(amount * 100);
+        StringBuilder line = new StringBuilder(PREFIX.length() + 16).append(PREFIX).append("Fee: ").append(cents / 100).append('.');
+        if (cents % 100 < 10) {
+            line.append('0');
+        }
+        return line.append(cents % 100).toString();
+    }
+
+    private Language language(String requested) {
+        String name = normalize(requested);
+        Language language = languages.get(name);
+        if (language == null) {
+            Language loaded = load(name);
+            language = languages.putIfAbsent(name, loaded);
+            if (language == null) {
+                language = loaded;
+            }
+        }
+        return language;
+    }
+
+    private Language load(String name) {
+        Language fallback = name.equals(DEFAULT_LOCALE) ? null : language(DEFAULT_LOCALE);
+        List<String> respawn = new ArrayList<String>();
+        String[] templates = fallback != null ? fallback.templates.clone() : new String[]{ "{station} Discovered", "A NewU Station", "You have discovered NewU Station: '{station}'." };
+        InputStream in = StationMessages.class.getResourceAsStream("/resources/lang/" + name + ".lang");
+        if (in == null) {
+            if (fallback != null) {
+                return fallback; // No such language, remembered as English so it is not looked up again
+            }
+            logger.severe("Failed to load reconstruction messages...");
+        }
+        else {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.startsWith("@title=")) {
+                            templates[0] = line.substring(7);
+                        }
+                        else if (line.startsWith("@subtitle=")) {
+                            templates[1] = line.substring(10);
+                        }
+                        else if (line.startsWith("@discovered=")) {
+                            templates[2] = line.substring(12);
+                        }
+                        else if (!line.isEmpty()) {
+                            respawn.add(PREFIX + line);
+                        }
+                    }
+                }
+                finally {
+                    reader.close();
+                }
+            }
+            catch (IOException ioex) {
+                logger.log(Level.SEVERE, "Failed to load reconstruction messages for " + name + "...", ioex);
+            }
+        }
+        String[] lines;
+        if (!respawn.isEmpty()) {
+            lines = respawn.toArray(new String[respawn.size()]);
+        }
+        else {
+            lines = fallback != null ? fallback.respawn : new String[]{ PREFIX + "Aaaaaand RESPAWN!" };
+        }
+        return new Language(lines, templates);
+    }
+
+    /**
+     * Puts the client's locale in the form of the language files, en_US for anything that does not look like one
+     */
+    private static String normalize(String locale) {
+        if (locale == null || locale.length() != 5 || locale.charAt(2) != '_') {
+            return DEFAULT_LOCALE;
+        }
+        for (int index = 0; index < 5; index++) {
+            if (index != 2 && !Character.isLetter(locale.charAt(index))) {
+                return DEFAULT_LOCALE;
+            }
+        }
+        return locale.substring(0, 2).toLowerCase().concat("_").concat(locale.substring(3).toUpperCase());
+    }
+
+    private static final class Language {
+        final String[] respawn;
+        /** Title, subtitle and chat message for a discovery */
+        final String[] templates;
+        final ConcurrentMap<String, Discovery> stations = new ConcurrentHashMap<String, Discovery>();
+        private volatile ChatComponent subtitle;
+
+        Language(String[] respawn, String[] templates) {
+            this.respawn = respawn;
+            this.templates = templates;
+        }
+
+        ChatComponent subtitle(ChatComponentFactory factory) {
+            ChatComponent current = subtitle;
+            if (current == null) {
+                current = factory.newChatComponent(templates[1]);
+                current.getChatStyle().setColor(factory.colorYellow());
+                subtitle = current;
+            }
+            return current;
+        }
+    }
+
+    /** The texts shown on discovering one station */
+    static final class Discovery {
+        final ChatComponent title;
+        final ChatComponent subtitle;
+        final String message;
+
+        private Discovery(Language language, String station, ChatComponentFactory factory) {
+            title = factory.newChatComponent(language.templates[0].replace("{station}", station));
+            title.getChatStyle().setColor(factory.colorAqua());
+            subtitle = language.subtitle(factory);
+            message = PREFIX + language.templates[2].replace("{station}", station);
+        }
+    }
+}
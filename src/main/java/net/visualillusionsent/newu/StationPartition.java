@@ -0,0 +1,172 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The stations of one world and dimension, along with their spatial index and journal
+ * <p/>
+ * Partitions are loaded when their world loads and flushed and dropped when it unloads.
+ * Until loading completes on the persistence thread a partition answers every query with nothing.
+ * The stations themselves are an immutable {@link StationRegistry}, replaced as a whole on every change.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class StationPartition implements StationSink {
+    private final PartitionKey key;
+    private final File directory;
+    private final AtomicReference<StationRegistry> registry = new AtomicReference<StationRegistry>(StationRegistry.EMPTY);
+    private final StationJournal journal;
+    /** Where the stations go until loading completes, persistence thread only */
+    private volatile StationRegistry.Builder loading = new StationRegistry.Builder();
+    private volatile boolean loaded;
+    // Persistence thread only
+    boolean compactPending;
+
+    StationPartition(PartitionKey key, File directory) {
+        this.key = key;
+        this.directory = directory;
+        this.journal = new StationJournal(new File(directory, key.getName().concat(".journal")));
+    }
+
+    final PartitionKey getKey() {
+        return key;
+    }
+
+    final File snapshotFile(SnapshotFormat format) {
+        return new File(directory, key.getName().concat(format.extension()));
+    }
+
+    final StationJournal journal() {
+        return journal;
+    }
+
+    final boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Publishes the stations restored so far as the first snapshot
+     */
+    final void setLoaded() {
+        StationRegistry.Builder builder = loading;
+        if (builder != null) {
+            registry.set(builder.build());
+            loading = null;
+        }
+        loaded = true;
+    }
+
+    /**
+     * Gets the current snapshot, to read several things from the same version
+     */
+    final StationRegistry registry() {
+        return registry.get();
+    }
+
+    /**
+     * Adds a station unless its name is taken or it is closer than the exclusion distance to another
+     */
+    final boolean add(NewUStation station, double exclusion) {
+        while (true) {
+            StationRegistry current = registry.get();
+            if (!current.accepts(station, exclusion)) {
+                return false;
+            }
+            if (registry.compareAndSet(current, current.with(station))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Adds a batch of stations in one change, or none of them if any fails the checks
+     */
+    final boolean addAll(List<NewUStation> batch, double exclusion, List<String> problems) {
+        while (true) {
+            StationRegistry current = registry.get();
+            if (!current.accepts(batch, exclusion, problems)) {
+                return false;
+            }
+            if (registry.compareAndSet(current, current.withAll(batch))) {
+                return true;
+            }
+        }
+    }
+
+    final NewUStation remove(String name) {
+        while (true) {
+            StationRegistry current = registry.get();
+            NewUStation station = current.get(name);
+            if (station == null || registry.compareAndSet(current, current.without(name))) {
+                return station;
+            }
+        }
+    }
+
+    final NewUStation get(String name) {
+        return registry.get().get(name);
+    }
+
+    final Collection<NewUStation> stations() {
+        return registry.get().stations();
+    }
+
+    final NewUStation nearest(double x, double y, double z, double radius, StationGrid.Filter filter) {
+        return registry.get().nearest(x, y, z, radius, filter);
+    }
+
+    @Override
+    public final void restoreStation(NewUStation station) {
+        StationRegistry.Builder builder = loading;
+        if (builder != null) {
+            builder.put(station);
+            return;
+        }
+        while (true) {
+            StationRegistry current = registry.get();
+            if (registry.compareAndSet(current, current.with(station))) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public final void restoreRemoval(String name) {
+        StationRegistry.Builder builder = loading;
+        if (builder != null) {
+            builder.remove(name);
+        }
+        else {
+            remove(name);
+        }
+    }
+
+    @Override
+    public final void restoreDiscovery(String name, String discoverer) {
+        StationRegistry.Builder builder = loading;
+        NewUStation station = builder != null ? builder.get(name) : get(name);
+        if (station != null) {
+            station.addDiscoverer(discoverer);
+        }
+    }
+}
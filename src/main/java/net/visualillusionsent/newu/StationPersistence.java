@@ -0,0 +1,450 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.api.world.DimensionType;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Station storage in plain files, the default
+ * <p/>
+ * Each {@link StationPartition} has its own snapshot and {@link StationJournal} under config/NewU/stations/.
+ * Changes are queued to the partition's journal and appended in one batch when the storage thread writes.
+ * When a journal grows past the compaction size it is folded into a new snapshot and started over.
+ * An index.txt alongside records which partition every station lives in.
+ * <p/>
+ * All partition file access happens on the persistence thread, so a partition is always flushed before it can be read back.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class StationPersistence extends StationStorage {
+    private static final String CHARSET = "UTF-8";
+
+    private final StationTracker tracker;
+    private final SnapshotFormat format;
+    private final File directory;
+    private final Set<StationPartition> dirty = Collections.newSetFromMap(new ConcurrentHashMap<StationPartition, Boolean>());
+    private volatile boolean indexDirty;
+
+    StationPersistence(StationTracker tracker, SnapshotFormat format, File directory, Logger logger) {
+        super(logger);
+        this.tracker = tracker;
+        this.format = format;
+        this.directory = directory;
+    }
+
+    @Override
+    final String getName() {
+        return "files";
+    }
+
+    /**
+     * Loads a partition from its snapshot and journal on the calling thread
+     * <p/>
+     * Whichever snapshot format was written last is used, so an exported or hand-edited copy in the other format is picked up.
+     * A journal that held anything is compacted straight away, which also drops any torn record left by a crash.
+     */
+    @Override
+    final void load(StationPartition partition) {
+        boolean compact = false;
+        int generation = 0;
+        SnapshotFormat newest = null;
+        File snapshot = null;
+        for (SnapshotFormat candidate : StationTracker.snapshotFormats()) {
+            File file = partition.snapshotFile(candidate);
+            if (file.exists() && file.length() > 0 && (snapshot == null || file.lastModified() > snapshot.lastModified())) {
+                newest = candidate;
+                snapshot = file;
+            }
+        }
+        if (newest != null) {
+            try {
+                generation = newest.read(snapshot, partition);
+                compact = newest != format; // Convert to the configured format
+            }
+            catch (Exception ex) {
+                logger.log(Level.SEVERE, "Failed to load stations for " + partition.getKey() + "...", ex);
+            }
+        }
+        partition.journal().setGeneration(generation);
+        try {
+            compact |= partition.journal().replay(partition, generation) > 0;
+            if (partition.journal().generation() < generation) {
+                // Stale journal from before the snapshot, start a new one rather than append to it
+                partition.journal().setGeneration(generation);
+                compact = true;
+            }
+        }
+        catch (IOException ioex) {
+            logger.log(Level.WARNING, "Station journal for " + partition.getKey() + " is damaged, recovered what could be read...", ioex);
+            compact = true;
+        }
+        partition.setLoaded();
+        if (compact) {
+            compact(partition);
+        }
+    }
+
+    /**
+     * Flushes a partition whose world went away and closes its journal
+     */
+    @Override
+    final void unload(final StationPartition partition) {
+        dirty.remove(partition);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                close(partition);
+            }
+        });
+    }
+
+    @Override
+    final void stationsAdded(StationPartition partition, Collection<NewUStation> stations) {
+        for (NewUStation station : stations) {
+            partition.journal().added(station);
+        }
+        indexDirty = true;
+        markDirty(partition);
+    }
+
+    @Override
+    final void stationAdded(StationPartition partition, NewUStation station) {
+        partition.journal().added(station);
+        indexDirty = true;
+        markDirty(partition);
+    }
+
+    @Override
+    final void stationRemoved(StationPartition partition, String name) {
+        partition.journal().removed(name);
+        indexDirty = true;
+        markDirty(partition);
+    }
+
+    /**
+     * Rewrites the files of the station's partition on the persistence thread
+     */
+    @Override
+    final void stationRemoved(PartitionKey key, final String name) {
+        final StationPartition offline = new StationPartition(key, directory);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                load(offline);
+                if (offline.remove(name) != null) {
+                    offline.journal().removed(name);
+                }
+                close(offline);
+            }
+        });
+        markIndexDirty();
+    }
+
+    @Override
+    final void stationDiscovered(StationPartition partition, NewUStation station, UUID uuid) {
+        partition.journal().discovered(station, uuid);
+        markDirty(partition);
+    }
+
+    @Override
+    final void markIndexDirty() {
+        indexDirty = true;
+        markDirty();
+    }
+
+    /**
+     * Notes that a partition changed and schedules a write if one is not already on the way
+     */
+    final void markDirty(StationPartition partition) {
+        dirty.add(partition);
+        markDirty();
+    }
+
+    @Override
+    final void flush() {
+        Iterator<StationPartition> partitions = dirty.iterator();
+        while (partitions.hasNext()) {
+            StationPartition partition = partitions.next();
+            partitions.remove();
+            write(partition);
+        }
+        if (indexDirty) {
+            writeIndex(tracker.directory());
+        }
+    }
+
+    private void write(StationPartition partition) {
+        try {
+            if (partition.compactPending) {
+                compact(partition);
+                if (partition.compactPending) {
+                    markDirty(partition);
+                    return; // Still no usable journal, hold on to the queue
+                }
+            }
+            partition.journal().drain();
+            if (partition.journal().length() > NewU.cfg.settings().journalCompactSize) {
+                compact(partition);
+            }
+        }
+        catch (IOException ioex) {
+            logger.log(Level.SEVERE, "Failed to write station journal for " + partition.getKey() + "...", ioex);
+            markDirty(partition); // Try again later
+        }
+        catch (RuntimeException rex) {
+            logger.log(Level.SEVERE, "Failed to write station journal for " + partition.getKey() + "...", rex);
+            markDirty(partition);
+        }
+    }
+
+    /**
+     * Folds a partition's journal into a new snapshot
+     * <p/>
+     * The snapshot is written with the next generation before the journal is reset.
+     * If we die in between, the old journal is older than the snapshot and gets skipped on the next load.
+     */
+    final void compact(StationPartition partition) {
+        int generation = partition.journal().generation() + 1;
+        if (!store(partition, format, generation)) {
+            return; // Keep journaling against the old snapshot
+        }
+        try {
+            partition.journal().reset(generation);
+            partition.compactPending = false;
+        }
+        catch (IOException ioex) {
+            // The journal still carries the old generation, so it has to be reset before anything else is appended to it
+            logger.log(Level.SEVERE, "Failed to reset station journal for " + partition.getKey() + "...", ioex);
+            partition.compactPending = true;
+            markDirty(partition);
+        }
+    }
+
+    final void close(StationPartition partition) {
+        try {
+            partition.journal().drain();
+        }
+        catch (IOException ioex) {
+            logger.log(Level.SEVERE, "Failed to write station journal for " + partition.getKey() + "...", ioex);
+        }
+        if (partition.compactPending || partition.journal().hasChanges()) {
+            // Leave a fresh snapshot behind so the next load has nothing to replay
+            compact(partition);
+        }
+        try {
+            partition.journal().close();
+        }
+        catch (IOException ioex) {
+            // IGNORED
+        }
+    }
+
+    /**
+     * Queues a snapshot of every loaded partition in the given format, written against each partition's current journal generation
+     */
+    @Override
+    final void export(final SnapshotFormat format) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                for (StationPartition partition : tracker.loadedPartitions()) {
+                    store(partition, format, partition.journal().generation());
+                }
+                logger.info("Stations exported as " + format.extension() + " files in " + directory.getPath());
+            }
+        });
+    }
+
+    /**
+     * Reads the station name index, rebuilding it from the partition files if it went missing
+     */
+    @Override
+    final Map<String, PartitionKey> readIndex() {
+        try {
+            Map<String, PartitionKey> index = readIndexFile();
+            if (index != null) {
+                return index;
+            }
+        }
+        catch (IOException ioex) {
+            logger.log(Level.WARNING, "Station index is damaged, rebuilding it...", ioex);
+        }
+        HashSet<String> seen = new HashSet<String>();
+        List<StationPartition> shards = new ArrayList<StationPartition>();
+        File[] files = directory.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            String name = file.getName();
+            int dot = name.lastIndexOf('.'), split = name.lastIndexOf('_');
+            if (dot <= 0 || split <= 0 || split > dot || !seen.add(name.substring(0, dot))) {
+                continue;
+            }
+            String extension = name.substring(dot);
+            boolean known = extension.equals(".journal");
+            for (SnapshotFormat format : StationTracker.snapshotFormats()) {
+                known |= extension.equals(format.extension());
+            }
+            DimensionType dimension = DimensionType.fromName(name.substring(split + 1, dot));
+            if (!known || dimension == null) {
+                continue;
+            }
+            shards.add(new StationPartition(new PartitionKey(name.substring(0, split), dimension), directory));
+        }
+        loadAll(shards);
+        HashMap<String, PartitionKey> index = new HashMap<String, PartitionKey>();
+        for (StationPartition partition : shards) {
+            for (NewUStation station : partition.stations()) {
+                index.put(station.getName(), partition.getKey());
+            }
+            close(partition);
+        }
+        writeIndex(index);
+        return index;
+    }
+
+    /**
+     * @return the names mapped to their partitions, or {@code null} if there is no index yet
+     */
+    private Map<String, PartitionKey> readIndexFile() throws IOException {
+        File index = new File(directory, "index.txt");
+        if (!index.exists()) {
+            return null;
+        }
+        HashMap<String, PartitionKey> names = new HashMap<String, PartitionKey>();
+        HashMap<String, PartitionKey> keys = new HashMap<String, PartitionKey>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(index), CHARSET));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length != 3) {
+                    continue;
+                }
+                String keyName = parts[1].concat("\t").concat(parts[2]);
+                PartitionKey key = keys.get(keyName);
+                if (key == null) {
+                    key = new PartitionKey(parts[1], DimensionType.fromName(parts[2]));
+                    keys.put(keyName, key);
+                }
+                names.put(parts[0], key);
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return names;
+    }
+
+    private void writeIndex(Map<String, PartitionKey> names) {
+        indexDirty = false;
+        File index = new File(directory, "index.txt");
+        File temp = new File(directory, "index.txt.tmp");
+        boolean failure = false;
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            Writer writer = new OutputStreamWriter(out, CHARSET);
+            for (Map.Entry<String, PartitionKey> entry : names.entrySet()) {
+                writer.write(entry.getKey());
+                writer.write('\t');
+                writer.write(entry.getValue().getWorld());
+                writer.write('\t');
+                writer.write(entry.getValue().getDimension().getName());
+                writer.write('\n');
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        catch (IOException ioex) {
+            logger.log(Level.SEVERE, "Failed to store station index...", ioex);
+            failure = true;
+        }
+        finally {
+            try {
+                if (out != null)
+                    out.close();
+            }
+            catch (IOException ioex) {
+                //IGNORED
+            }
+        }
+        if (failure || !replace(temp, index)) {
+            indexDirty = true;
+            markDirty();
+        }
+    }
+
+    @Override
+    final void storeIndex() {
+        writeIndex(tracker.directory());
+    }
+
+    /**
+     * Snapshots the partition and leaves an empty journal behind it
+     */
+    @Override
+    final void storeAll(StationPartition partition) {
+        compact(partition);
+        close(partition);
+    }
+
+    @Override
+    final long backlog() {
+        long queued = 0;
+        for (StationPartition partition : tracker.loadedPartitions()) {
+            queued += partition.journal().queued();
+        }
+        return queued;
+    }
+
+    /**
+     * Stops the background writer and flushes every loaded partition on the calling thread
+     */
+    @Override
+    final void shutdown() {
+        stopWriter();
+        dirty.clear();
+        for (StationPartition partition : tracker.loadedPartitions()) {
+            close(partition);
+        }
+        if (indexDirty) {
+            writeIndex(tracker.directory());
+        }
+    }
+}
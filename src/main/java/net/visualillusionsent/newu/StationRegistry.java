@@ -0,0 +1,199 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.api.world.position.Location;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the stations in one partition, along with the indexes derived from them
+ * <p/>
+ * Readers use whichever snapshot they picked up without locking.
+ * Changes build a new snapshot with the next version, which the {@link StationPartition} publishes with a compare and set.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class StationRegistry {
+    static final StationRegistry EMPTY = new StationRegistry(0, new HashMap<String, NewUStation>(), new StationGrid());
+
+    private final long version;
+    private final Map<String, NewUStation> stations;
+    private final Collection<NewUStation> view;
+    private final StationGrid grid;
+
+    private StationRegistry(long version, Map<String, NewUStation> stations, StationGrid grid) {
+        this.version = version;
+        this.stations = stations;
+        this.view = Collections.unmodifiableCollection(stations.values());
+        this.grid = grid;
+    }
+
+    /**
+     * Counts the changes made since the partition was created
+     */
+    final long version() {
+        return version;
+    }
+
+    final NewUStation get(String name) {
+        return stations.get(name);
+    }
+
+    final Collection<NewUStation> stations() {
+        return view;
+    }
+
+    final int size() {
+        return stations.size();
+    }
+
+    final NewUStation nearest(double x, double y, double z, double radius, StationGrid.Filter filter) {
+        return grid.nearest(x, y, z, radius, filter);
+    }
+
+    final void within(double x, double y, double z, double radius, StationGrid.Filter filter, List<NewUStation> found) {
+        grid.within(x, y, z, radius, filter, found);
+    }
+
+    /**
+     * Checks whether the station could be added, that is its name is free and no station is closer than the exclusion distance
+     */
+    final boolean accepts(NewUStation station, double exclusion) {
+        Location loc = station.getStationLocation();
+        return !stations.containsKey(station.getName()) && !grid.anyWithin(loc.getX(), loc.getY(), loc.getZ(), exclusion);
+    }
+
+    /**
+     * Checks a batch of stations against this snapshot and each other for names and the exclusion distance
+     *
+     * @param problems
+     *         receives a description of every station that could not be added
+     *
+     * @return {@code true} if the whole batch could be added
+     */
+    final boolean accepts(List<NewUStation> batch, double exclusion, List<String> problems) {
+        StationGrid placed = new StationGrid();
+        HashMap<String, NewUStation> names = new HashMap<String, NewUStation>();
+        boolean accepted = true;
+        for (NewUStation station : batch) {
+            Location loc = station.getStationLocation();
+            if (stations.containsKey(station.getName()) || names.put(station.getName(), station) != null) {
+                problems.add(station.getName() + ": name already used");
+                accepted = false;
+            }
+            else if (grid.anyWithin(loc.getX(), loc.getY(), loc.getZ(), exclusion) || placed.anyWithin(loc.getX(), loc.getY(), loc.getZ(), exclusion)) {
+                NewUStation near = grid.nearest(loc.getX(), loc.getY(), loc.getZ(), exclusion, null);
+                if (near == null) {
+                    near = placed.nearest(loc.getX(), loc.getY(), loc.getZ(), exclusion, null);
+                }
+                problems.add(station.getName() + ": closer than " + (int) exclusion + " blocks to " + (near != null ? near.getName() : "another station"));
+                accepted = false;
+            }
+            else {
+                placed.add(station);
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Builds the next snapshot with all of the stations added, copying the map and grid once
+     */
+    final StationRegistry withAll(List<NewUStation> batch) {
+        HashMap<String, NewUStation> copy = new HashMap<String, NewUStation>(stations);
+        StationGrid next = grid.copy();
+        for (NewUStation station : batch) {
+            NewUStation replaced = copy.put(station.getName(), station);
+            if (replaced != null) {
+                next.remove(replaced);
+            }
+            next.add(station);
+        }
+        return new StationRegistry(version + 1, copy, next);
+    }
+
+    /**
+     * Builds the next snapshot with the station added, replacing any of the same name
+     */
+    final StationRegistry with(NewUStation station) {
+        HashMap<String, NewUStation> copy = new HashMap<String, NewUStation>(stations);
+        StationGrid next = grid.copy();
+        NewUStation replaced = copy.put(station.getName(), station);
+        if (replaced != null) {
+            next.remove(replaced);
+        }
+        next.add(station);
+        return new StationRegistry(version + 1, copy, next);
+    }
+
+    /**
+     * Builds the next snapshot with the named station removed
+     *
+     * @return the next snapshot, or this one if there is no such station
+     */
+    final StationRegistry without(String name) {
+        NewUStation station = stations.get(name);
+        if (station == null) {
+            return this;
+        }
+        HashMap<String, NewUStation> copy = new HashMap<String, NewUStation>(stations);
+        copy.remove(name);
+        StationGrid next = grid.copy();
+        next.remove(station);
+        return new StationRegistry(version + 1, copy, next);
+    }
+
+    /**
+     * Collects stations while a partition loads, then makes them one snapshot instead of one per station
+     */
+    static final class Builder {
+        private final HashMap<String, NewUStation> stations = new HashMap<String, NewUStation>();
+        private final StationGrid grid = new StationGrid();
+        private long changes;
+
+        final NewUStation get(String name) {
+            return stations.get(name);
+        }
+
+        final void put(NewUStation station) {
+            NewUStation replaced = stations.put(station.getName(), station);
+            if (replaced != null) {
+                grid.remove(replaced);
+            }
+            grid.add(station);
+            changes++;
+        }
+
+        final void remove(String name) {
+            NewUStation station = stations.remove(name);
+            if (station != null) {
+                grid.remove(station);
+                changes++;
+            }
+        }
+
+        final StationRegistry build() {
+            return new StationRegistry(changes, stations, grid);
+        }
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.api.world.DimensionType;
+import net.canarymod.api.world.position.Location;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shares station changes with other servers running on the same maps
+ * <p/>
+ * Adds, removals and discoveries made here are collected and published as one small batch per exchange,
+ * and the batches of the other servers are applied as they come in, through a {@link ReplicationTransport}.
+ * <p/>
+ * Adds and removals carry a version, a timestamp that never runs backwards on any one server plus the name of the server.
+ * A change only applies if its version is newer than the last one seen for that station name, so the last writer wins
+ * and every server settles on the same result whatever order the batches arrive in. Removals are remembered for that.
+ * Discoveries only ever add, so they need no version.
+ * <p/>
+ * Versions are kept in memory, so after a restart the first change seen for a station wins.
+ * Changes for a world that is not loaded here are held and retried until it loads, however long that takes.
+ * Nothing held is dropped while the server runs, a warning is logged instead as the number held grows.
+ * <p/>
+ * Batch layout, big-endian:
+ * <pre>
+ * header      int magic 'NEWR', short version, UTF node, int changes
+ * add         byte 'A', long stamp, UTF name, UTF world, UTF dimension, double x, double y, double z
+ * removal     byte 'R', long stamp, UTF name
+ * discovery   byte 'D', UTF name, long uuid most significant bits, long uuid least significant bits
+ * </pre>
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class StationReplicator implements Runnable {
+    private static final int MAGIC = 0x4E455752; // NEWR
+    private static final short VERSION = 1;
+    /** Held changes past which a warning is logged, doubling with each warning */
+    private static final int HOLD_WARNING = 10000;
+
+    private final String node;
+    private final ReplicationTransport transport;
+    private final Logger logger;
+    private final ScheduledExecutorService executor;
+    private final ConcurrentLinkedQueue<Change> outgoing = new ConcurrentLinkedQueue<Change>();
+    /** Latest version of every station name seen, guarded by itself */
+    private final HashMap<String, Version> versions = new HashMap<String, Version>();
+    /** Changes waiting on a world to load, replication thread only */
+    private final List<Change> held = new ArrayList<Change>();
+    private int holdWarning = HOLD_WARNING;
+    // Guarded by versions
+    private long clock;
+
+    /**
+     * @param node
+     *         a name for this server unique among its peers, best made anew on every start as versions do not outlive the server
+     */
+    StationReplicator(String node, ReplicationTransport transport, Logger logger) {
+        this.node = node;
+        this.transport = transport;
+        this.logger = logger;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            private final ThreadFactory backing = Executors.defaultThreadFactory();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = backing.newThread(runnable);
+                thread.setName("NewU-Replication");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    final void start() {
+        logger.info("Sharing stations through " + transport.getName() + " as " + node);
+        executor.schedule(this, NewU.cfg.settings().replicationInterval, TimeUnit.MILLISECONDS);
+    }
+
+    final void stationAdded(NewUStation station) {
+        Location loc = station.getStationLocation();
+        Change change = new Change('A', station.getName(), stamp(station.getName(), false), node);
+        change.world = loc.getWorldName();
+        change.dimension = loc.getType();
+        change.x = loc.getX();
+        change.y = loc.getY();
+        change.z = loc.getZ();
+        outgoing.add(change);
+    }
+
+    final void stationRemoved(String name) {
+        outgoing.add(new Change('R', name, stamp(name, true), node));
+    }
+
+    final void stationDiscovered(NewUStation station, UUID uuid) {
+        Change change = new Change('D', station.getName(), 0, node);
+        change.player = uuid;
+        outgoing.add(change);
+    }
+
+    /**
+     * Gives a local change a version newer than anything seen so far
+     */
+    private long stamp(String name, boolean removed) {
+        synchronized (versions) {
+            clock = Math.max(clock + 1, System.currentTimeMillis());
+            versions.put(name, new Version(clock, node, removed));
+            return clock;
+        }
+    }
+
+    /**
+     * Exchanges changes with the other servers, then schedules the next exchange
+     */
+    @Override
+    public final void run() {
+        try {
+            exchange();
+        }
+        catch (RuntimeException rex) {
+            logger.log(Level.SEVERE, "Station replication failed...", rex);
+        }
+        finally {
+            if (!executor.isShutdown()) {
+                executor.schedule(this, NewU.cfg.settings().replicationInterval, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void exchange() {
+        publish();
+        List<byte[]> batches;
+        try {
+            batches = transport.receive();
+        }
+        catch (IOException ioex) {
+            logger.log(Level.WARNING, "Failed to receive station changes from " + transport.getName() + "...", ioex);
+            return;
+        }
+        // Anything held is older than what just came in
+        Iterator<Change> waiting = held.iterator();
+        while (waiting.hasNext()) {
+            if (apply(waiting.next(), false)) {
+                waiting.remove();
+            }
+        }
+        if (held.size() < HOLD_WARNING / 2) {
+            holdWarning = HOLD_WARNING;
+        }
+        for (byte[] batch : batches) {
+            try {
+                for (Change change : read(batch)) {
+                    if (!apply(change, true)) {
+                        hold(change);
+                    }
+                }
+            }
+            catch (IOException ioex) {
+                logger.log(Level.WARNING, "Skipped a damaged batch of station changes...", ioex);
+            }
+        }
+    }
+
+    private void publish() {
+        if (outgoing.isEmpty()) {
+            return;
+        }
+        List<Change> batch = new ArrayList<Change>();
+        Change change;
+        while ((change = outgoing.poll()) != null) {
+            batch.add(change);
+        }
+        try {
+            transport.publish(write(batch));
+        }
+        catch (IOException ioex) {
+            logger.log(Level.WARNING, "Failed to publish " + batch.size() + " station changes, retrying with the next exchange...", ioex);
+            // Back in front of anything queued since, keeping the order
+            batch.addAll(outgoing);
+            outgoing.clear();
+            outgoing.addAll(batch);
+        }
+    }
+
+    private void hold(Change change) {
+        held.add(change);
+        if (held.size() >= holdWarning) {
+            logger.warning(held.size() + " station changes are waiting on worlds that are not loaded here. They are kept until those worlds load, so a world that never loads on this server keeps them for good");
+            holdWarning *= 2;
+        }
+    }
+
+    /**
+     * Applies a change from another server unless a newer one for its station was already seen
+     *
+     * @param fresh
+     *         {@code true} the first time the change is tried, {@code false} when retrying a held change
+     *
+     * @return {@code true} if the change is done with, {@code false} if it has to wait for its world to load
+     */
+    private boolean apply(Change change, boolean fresh) {
+        if (change.kind == 'D') {
+            synchronized (versions) {
+                Version version = versions.get(change.name);
+                if (version != null && version.removed) {
+                    return true; // Gone, and its discoveries with it
+                }
+            }
+            return NewU.tracker.replicaDiscovered(change.name, change.player);
+        }
+        synchronized (versions) {
+            Version version = versions.get(change.name);
+            if (fresh) {
+                clock = Math.max(clock, change.stamp);
+                if (version != null && !version.olderThan(change.stamp, change.node)) {
+                    return true; // Lost to a later change
+                }
+                versions.put(change.name, new Version(change.stamp, change.node, change.kind == 'R'));
+            }
+            else if (version == null || version.stamp != change.stamp || !version.node.equals(change.node)) {
+                return true; // Superseded while it waited
+            }
+        }
+        if (change.kind == 'R') {
+            NewU.tracker.replicaRemoved(change.name);
+            return true;
+        }
+        return NewU.tracker.replicaAdded(new NewUStation(change.name, change.world, change.dimension, change.x, change.y, change.z));
+    }
+
+    private byte[] write(List<Change> batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + batch.size() * 48);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeUTF(node);
+        out.writeInt(batch.size());
+        for (Change change : batch) {
+            out.writeByte(change.kind);
+            if (change.kind == 'D') {
+                out.writeUTF(change.name);
+                out.writeLong(change.player.getMostSignificantBits());
+                out.writeLong(change.player.getLeastSignificantBits());
+                continue;
+            }
+            out.writeLong(change.stamp);
+            out.writeUTF(change.name);
+            if (change.kind == 'A') {
+                out.writeUTF(change.world);
+                out.writeUTF(change.dimension.getName());
+                out.writeDouble(change.x);
+                out.writeDouble(change.y);
+                out.writeDouble(change.z);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static List<Change> read(byte[] batch) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(batch));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a station change batch");
+        }
+        short version = in.readShort();
+        if (version > VERSION) {
+            throw new IOException("Station change batch version " + version + " is newer than this NewU");
+        }
+        String node = in.readUTF();
+        int count = in.readInt();
+        List<Change> changes = new ArrayList<Change>(count);
+        for (int index = 0; index < count; index++) {
+            char kind = (char) in.readByte();
+            if (kind == 'D') {
+                Change change = new Change(kind, in.readUTF(), 0, node);
+                change.player = new UUID(in.readLong(), in.readLong());
+                changes.add(change);
+                continue;
+            }
+            if (kind != 'A' && kind != 'R') {
+                throw new IOException("Unknown station change '" + kind + "'");
+            }
+            long stamp = in.readLong();
+            Change change = new Change(kind, in.readUTF(), stamp, node);
+            if (kind == 'A') {
+                change.world = in.readUTF();
+                change.dimension = DimensionType.fromName(in.readUTF());
+                change.x = in.readDouble();
+                change.y = in.readDouble();
+                change.z = in.readDouble();
+                if (change.dimension == null) {
+                    continue; // A dimension this server does not have
+                }
+            }
+            changes.add(change);
+        }
+        return changes;
+    }
+
+    /**
+     * Stops exchanging, after publishing what is left
+     */
+    final void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+        }
+        publish();
+        transport.close();
+        if (!held.isEmpty()) {
+            logger.warning(held.size() + " station changes for worlds that never loaded were not applied and are lost to this server");
+        }
+    }
+
+    private static final class Version {
+        final long stamp;
+        final String node;
+        final boolean removed;
+
+        Version(long stamp, String node, boolean removed) {
+            this.stamp = stamp;
+            this.node = node;
+            this.removed = removed;
+        }
+
+        /**
+         * Orders by stamp, and by server name between equal stamps so every server picks the same winner
+         */
+        boolean olderThan(long stamp, String node) {
+            return this.stamp < stamp || this.stamp == stamp && this.node.compareTo(node) < 0;
+        }
+    }
+
+    private static final class Change {
+        final char kind;
+        final String name;
+        final long stamp;
+        final String node;
+        String world;
+        DimensionType dimension;
+        double x, y, z;
+        UUID player;
+
+        Change(char kind, String name, long stamp, String node) {
+            this.kind = kind;
+            this.name = name;
+            this.stamp = stamp;
+            this.node = node;
+        }
+    }
+}
@@ -18,9 +18,21 @@
 package net.visualillusionsent.newu;
 
 /**
- * @author darkdiplomat
+ * Receives stations and changes as they are read back from disk
+ *
+ * @author Jason (darkdiplomat)
  */
-public enum EconomyType {
-    DCONOMY,
-    CRAFTCONOMY,
+interface StationSink {
+
+    /**
+     * Puts a station in place, replacing any of the same name
+     */
+    void restoreStation(NewUStation station);
+
+    void restoreRemoval(String name);
+
+    /**
+     * Adds a discoverer, given as a UUID string or a legacy player name
+     */
+    void restoreDiscovery(String name, String discoverer);
 }
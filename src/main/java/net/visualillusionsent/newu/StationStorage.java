@@ -0,0 +1,335 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Where the {@link StationTracker} keeps its stations and discoveries
+ * <p/>
+ * Changes are handed over as they happen and written behind by the storage thread,
+ * once changes have been quiet for persistence.delay or the oldest unwritten one reaches persistence.max.stale.
+ * Loads and anything passed to {@link #execute} run after everything already queued for that thread.
+ *
+ * @author Jason (darkdiplomat)
+ */
+abstract class StationStorage {
+    final Logger logger;
+    private final ScheduledThreadPoolExecutor executor;
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushIfDue();
+        }
+    };
+
+    // Guarded by this
+    private long firstDirty, lastDirty;
+    private boolean scheduled;
+
+    StationStorage(Logger logger) {
+        this.logger = logger;
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            private final ThreadFactory backing = Executors.defaultThreadFactory();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = backing.newThread(runnable);
+                thread.setName("NewU-Persistence");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Gets the name this storage is selected by in storage.backend
+     */
+    abstract String getName();
+
+    /**
+     * Loads a partition's stations on the calling thread, marking it loaded when done
+     */
+    abstract void load(StationPartition partition);
+
+    /**
+     * Flushes a partition whose world went away
+     */
+    abstract void unload(StationPartition partition);
+
+    abstract void stationAdded(StationPartition partition, NewUStation station);
+
+    /**
+     * Queues a whole batch of stations, written out together
+     */
+    abstract void stationsAdded(StationPartition partition, Collection<NewUStation> stations);
+
+    abstract void stationRemoved(StationPartition partition, String name);
+
+    /**
+     * Removes a station of a world that is not loaded
+     */
+    abstract void stationRemoved(PartitionKey key, String name);
+
+    abstract void stationDiscovered(StationPartition partition, NewUStation station, UUID uuid);
+
+    /**
+     * Writes every station of a partition built outside the tracker, such as one migrated from older files, on the calling thread
+     */
+    abstract void storeAll(StationPartition partition);
+
+    /**
+     * Reads the partition of every station, including those of worlds that are not loaded
+     */
+    abstract Map<String, PartitionKey> readIndex();
+
+    /**
+     * Writes a copy of the loaded worlds' stations as snapshot files in the given format, without blocking the caller
+     */
+    abstract void export(SnapshotFormat format);
+
+    /**
+     * Gets the number of changes waiting to be written
+     */
+    abstract long backlog();
+
+    /**
+     * Writes what has been queued, on the storage thread
+     */
+    abstract void flush();
+
+    /**
+     * Stops the storage thread and writes everything still waiting on the calling thread
+     */
+    abstract void shutdown();
+
+    /**
+     * Notes that the station name index needs writing, for storage that keeps one apart from the stations
+     */
+    void markIndexDirty() {
+    }
+
+    /**
+     * Writes the station name index now, on the calling thread
+     */
+    void storeIndex() {
+    }
+
+    /**
+     * Tells whether a joining player's discoveries have to be brought in with {@link #discoveries}, rather than being in memory with the stations
+     */
+    boolean loadsDiscoveriesPerPlayer() {
+        return false;
+    }
+
+    /**
+     * Brings in the discoveries of a player who just showed up, on the storage thread, for storage that does not keep every discovery in memory
+     *
+     * @return the names of the stations the player discovered, which the loaded stations may not know of yet
+     */
+    Collection<String> discoveries(UUID uuid, String name) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Reads the stations a player discovered without bringing them in, for storage that does not keep every discovery in memory
+     */
+    Collection<String> storedDiscoveries(UUID uuid) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Notes that a player left, so discoveries of worlds loaded from now on may leave theirs out
+     */
+    void playerLeft(UUID uuid) {
+    }
+
+    /**
+     * Runs a task on the storage thread, after anything already queued for it
+     */
+    final void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Notes that something changed and schedules a write if one is not already on the way
+     */
+    final synchronized void markDirty() {
+        long now = System.currentTimeMillis();
+        if (firstDirty == 0) {
+            firstDirty = now;
+        }
+        lastDirty = now;
+        if (!scheduled && !executor.isShutdown()) {
+            scheduled = true;
+            executor.schedule(flushTask, NewU.cfg.settings().persistenceDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushIfDue() {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            NewUSettings settings = NewU.cfg.settings();
+            long due = Math.min(lastDirty + settings.persistenceDelay, firstDirty + settings.persistenceMaxStale);
+            if (due > now) {
+                // Still receiving changes, wait for things to settle
+                executor.schedule(flushTask, due - now, TimeUnit.MILLISECONDS);
+                return;
+            }
+            // Cleared before writing so changes made during the write schedule another one
+            firstDirty = 0;
+            scheduled = false;
+        }
+        flush();
+    }
+
+    /**
+     * Stops the storage thread once what is already queued on it has run
+     */
+    final void stopWriter() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            firstDirty = 0;
+            scheduled = false;
+        }
+    }
+
+    /**
+     * Loads the partitions side by side, each on its own, so a damaged shard only costs its own world
+     * <p/>
+     * Returns once every partition is loaded.
+     */
+    final void loadAll(Collection<StationPartition> pending) {
+        int threads = Math.min(pending.size(), Runtime.getRuntime().availableProcessors());
+        if (threads <= 1) {
+            for (StationPartition partition : pending) {
+                load(partition);
+            }
+            return;
+        }
+        ExecutorService loaders = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final ThreadFactory backing = Executors.defaultThreadFactory();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = backing.newThread(runnable);
+                thread.setName("NewU-Loader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            Map<StationPartition, Future<?>> loads = new LinkedHashMap<StationPartition, Future<?>>();
+            for (final StationPartition partition : pending) {
+                loads.put(partition, loaders.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        load(partition);
+                    }
+                }));
+            }
+            for (Map.Entry<StationPartition, Future<?>> load : loads.entrySet()) {
+                try {
+                    load.getValue().get();
+                }
+                catch (ExecutionException eex) {
+                    logger.log(Level.SEVERE, "Failed to load stations for " + load.getKey().getKey() + "...", eex.getCause());
+                    load.getKey().setLoaded(); // Whatever was read, so the world still works
+                }
+            }
+        }
+        catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            loaders.shutdown();
+        }
+    }
+
+    /**
+     * Writes a partition snapshot
+     * <p/>
+     * The data goes to a temp file which is synced before it replaces the snapshot, so a crash leaves either the old or new copy intact.
+     */
+    final boolean store(StationPartition partition, SnapshotFormat format, int generation) {
+        long start = System.nanoTime();
+        try {
+            return write(partition, format, generation);
+        }
+        finally {
+            Metrics.SNAPSHOT_STORE.stop(start);
+        }
+    }
+
+    private boolean write(StationPartition partition, SnapshotFormat format, int generation) {
+        File target = partition.snapshotFile(format);
+        File temp = new File(target.getPath().concat(".tmp")); //Store to temp first
+        boolean failure = false;
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            format.write(out, partition.stations(), generation);
+            out.getFD().sync();
+        }
+        catch (Exception ex) {
+            logger.log(Level.SEVERE, "Failed to store stations for " + partition.getKey() + "...", ex);
+            failure = true;
+        }
+        finally {
+            try {
+                if (out != null)
+                    out.close();
+            }
+            catch (IOException ioex) {
+                //IGNORED
+            }
+        }
+        return !failure && replace(temp, target);
+    }
+
+    static boolean replace(File temp, File target) {
+        if (!temp.renameTo(target)) {
+            // Some platforms will not rename over an existing file
+            return target.delete() && temp.renameTo(target);
+        }
+        return true;
+    }
+}
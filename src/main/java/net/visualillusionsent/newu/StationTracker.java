@@ -17,248 +17,853 @@
  */
 package net.visualillusionsent.newu;
 
-import com.google.gson.stream.JsonReader;
-import com.google.gson.stream.JsonWriter;
 import net.canarymod.api.entity.living.humanoid.Player;
+import net.canarymod.api.world.DimensionType;
+import net.canarymod.api.world.World;
 import net.canarymod.api.world.position.Location;
-import net.visualillusionsent.utils.JarUtils;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.jar.JarFile;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.ZipEntry;
 
 /**
  * @author Jason (darkdiplomat)
  */
 final class StationTracker {
-    private final Random randy = new Random();
-    private final Map<String, NewUStation> stations = new ConcurrentHashMap<String, NewUStation>();
-    private final List<String> respawnMessages;
+    private static final Map<String, SnapshotFormat> FORMATS = new LinkedHashMap<String, SnapshotFormat>();
+    /** Discoveries a player may have before respawn lookups go through the grid instead of the player's list */
+    private static final int SCAN_LIMIT = 1024;
+
+    static {
+        FORMATS.put("json", new JsonSnapshot());
+        FORMATS.put("binary", new BinarySnapshot());
+    }
+
+    /** Partitions of the loaded worlds, by world name then dimension */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<DimensionType, StationPartition>> partitions = new ConcurrentHashMap<String, ConcurrentHashMap<DimensionType, StationPartition>>();
+    /** Every station name, loaded or not, and the partition it lives in */
+    private final ConcurrentHashMap<String, PartitionKey> directory = new ConcurrentHashMap<String, PartitionKey>();
+    private final File stationsDir = new File(NewU.cfgDir, "stations");
+    private final StationMessages messages;
+    private final DiscoveryIndex discoveries = new DiscoveryIndex();
     private final Logger logger;
+    /** Players whose discoveries have been brought in from storage since they joined */
+    private final Set<UUID> discoveriesLoaded = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+    /** Players whose discoveries are on the way in on the storage thread */
+    private final Set<UUID> discoveriesLoading = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+    private final StationStorage storage;
 
-    StationTracker(NewU newU) {
-        logger = newU.getPluginLogger();
-        loadStations();
-        respawnMessages = Collections.unmodifiableList(loadMessages());
+    StationTracker(Logger logger, Collection<World> loadedWorlds) {
+        this.logger = logger;
+        this.messages = new StationMessages(logger);
+        SnapshotFormat format = snapshotFormat(NewU.cfg.settings().storageFormat);
+        if (format == null) {
+            logger.warning("Unknown storage.format '" + NewU.cfg.settings().storageFormat + "', using json");
+            format = FORMATS.get("json");
+        }
+        boolean migrate = !stationsDir.exists();
+        if (migrate && !stationsDir.mkdirs()) {
+            logger.severe("Failed to create " + stationsDir.getPath() + ", stations will not be saved");
+        }
+        StationStorage chosen = null;
+        String backend = NewU.cfg.settings().storageBackend;
+        if (backend.equals("h2")) {
+            chosen = SqlStationStorage.open(this, format, stationsDir, logger);
+        }
+        else if (!backend.equals("files")) {
+            logger.warning("Unknown storage.backend '" + backend + "', using files");
+        }
+        storage = chosen != null ? chosen : new StationPersistence(this, format, stationsDir, logger);
+        if (migrate) {
+            migrateLegacy();
+        }
+        else {
+            loadIndex();
+        }
+        List<StationPartition> initial = new ArrayList<StationPartition>();
+        for (World world : loadedWorlds) {
+            StationPartition partition = register(world.getName(), world.getType());
+            if (partition != null) {
+                initial.add(partition);
+            }
+        }
+        storage.loadAll(initial);
+        for (StationPartition partition : initial) {
+            loaded(partition);
+        }
     }
 
     final boolean addStation(NewUStation station) {
-        // Check that we are beyond 50 blocks from another station
-        synchronized (stations) {
-            for (NewUStation preExisting : stations.values()) {
-                if (preExisting.getStationLocation().getDistance(station.getStationLocation()) < 50) {
-                    return false;
+        Location loc = station.getStationLocation();
+        StationPartition partition = partition(loc.getWorldName(), loc.getType());
+        if (partition == null || !partition.isLoaded()) {
+            return false; // World still loading
+        }
+        // Names are unique across every world, loaded or not
+        if (directory.putIfAbsent(station.getName(), partition.getKey()) != null) {
+            return false;
+        }
+        // Check that we are far enough from another station
+        if (!partition.add(station, NewU.cfg.settings().exclusionDistance)) {
+            directory.remove(station.getName());
+            return false;
+        }
+        storage.stationAdded(partition, station);
+        queueSpawnRefresh(station);
+        if (NewU.replicator != null) {
+            NewU.replicator.stationAdded(station);
+        }
+        if (NewU.stations != null) {
+            NewU.stations.stationAdded(station);
+        }
+        return true;
+    }
+
+    /**
+     * Adds a batch of stations all at once, or none of them
+     * <p/>
+     * The batch is checked as a whole against the existing stations and itself for names and spacing,
+     * then each world's share is added in a single change and written out together.
+     *
+     * @param problems
+     *         receives a description of every station that kept the batch out
+     *
+     * @return {@code true} if the batch was added
+     */
+    final boolean addStations(List<NewUStation> batch, List<String> problems) {
+        double exclusion = NewU.cfg.settings().exclusionDistance;
+        LinkedHashMap<StationPartition, List<NewUStation>> byPartition = new LinkedHashMap<StationPartition, List<NewUStation>>();
+        for (NewUStation station : batch) {
+            Location loc = station.getStationLocation();
+            StationPartition partition = partition(loc.getWorldName(), loc.getType());
+            if (partition == null || !partition.isLoaded()) {
+                problems.add(station.getName() + ": world " + loc.getWorldName() + " is not loaded");
+                continue;
+            }
+            if (directory.containsKey(station.getName())) {
+                problems.add(station.getName() + ": name already used");
+                continue;
+            }
+            List<NewUStation> share = byPartition.get(partition);
+            if (share == null) {
+                share = new ArrayList<NewUStation>();
+                byPartition.put(partition, share);
+            }
+            share.add(station);
+        }
+        for (Map.Entry<StationPartition, List<NewUStation>> share : byPartition.entrySet()) {
+            share.getKey().registry().accepts(share.getValue(), exclusion, problems);
+        }
+        if (!problems.isEmpty()) {
+            return false;
+        }
+        // Names are unique across every world, so claim them all before anything is visible
+        List<NewUStation> claimed = new ArrayList<NewUStation>(batch.size());
+        claim:
+        for (Map.Entry<StationPartition, List<NewUStation>> share : byPartition.entrySet()) {
+            for (NewUStation station : share.getValue()) {
+                if (directory.putIfAbsent(station.getName(), share.getKey().getKey()) != null) {
+                    problems.add(station.getName() + ": name already used");
+                    break claim;
                 }
-                else if (preExisting.getName().equals(station.getName())) {
-                    return false;
+                claimed.add(station);
+            }
+        }
+        List<StationPartition> added = new ArrayList<StationPartition>(byPartition.size());
+        if (problems.isEmpty()) {
+            for (Map.Entry<StationPartition, List<NewUStation>> share : byPartition.entrySet()) {
+                if (!share.getKey().addAll(share.getValue(), exclusion, problems)) {
+                    break; // A station was set meanwhile
+                }
+                added.add(share.getKey());
+            }
+        }
+        if (!problems.isEmpty()) {
+            for (StationPartition partition : added) {
+                for (NewUStation station : byPartition.get(partition)) {
+                    partition.remove(station.getName());
+                }
+            }
+            for (NewUStation station : claimed) {
+                directory.remove(station.getName());
+            }
+            return false;
+        }
+        for (StationPartition partition : added) {
+            storage.stationsAdded(partition, byPartition.get(partition));
+            for (NewUStation station : byPartition.get(partition)) {
+                queueSpawnRefresh(station);
+                if (NewU.replicator != null) {
+                    NewU.replicator.stationAdded(station);
+                }
+                if (NewU.stations != null) {
+                    NewU.stations.stationAdded(station);
                 }
             }
         }
-        stations.put(station.getName(), station);
-        storeStations();
         return true;
     }
 
     final boolean removeStation(String name) {
-        NewUStation station = stations.remove(name);
-        storeStations();
-        return station != null;
+        if (!unstore(name)) {
+            return false;
+        }
+        if (NewU.replicator != null) {
+            NewU.replicator.stationRemoved(name);
+        }
+        return true;
     }
 
-    Location getClosestRespawn(Player player) {
-        double distance = -1;
-        NewUStation going = null;
-
-        synchronized (stations) {
-            for (NewUStation station : stations.values()) {
-                if (station.hasDiscovered(player)) {
-                    double dist = station.distanceFrom(player);
-                    if (distance == -1) {
-                        distance = dist;
-                        going = station;
+    private boolean unstore(final String name) {
+        PartitionKey key = directory.remove(name);
+        if (key == null) {
+            return false;
+        }
+        messages.forget(name);
+        final StationPartition partition = partition(key.getWorld(), key.getDimension());
+        if (partition != null && partition.isLoaded()) {
+            NewUStation removed = partition.remove(name);
+            if (removed != null) {
+                storage.stationRemoved(partition, name);
+                if (NewU.stations != null) {
+                    NewU.stations.stationRemoved(removed);
+                }
+            }
+        }
+        else if (partition != null) {
+            // Still loading, remove it once the load has run
+            storage.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (partition.remove(name) != null) {
+                        storage.stationRemoved(partition, name);
                     }
-                    else if (dist < distance) {
-                        distance = dist;
-                        going = station;
+                }
+            });
+            storage.markIndexDirty();
+        }
+        else {
+            storage.stationRemoved(key, name);
+        }
+        return true;
+    }
+
+    Location getClosestRespawn(final Player player) {
+        long start = System.nanoTime();
+        try {
+            return closestRespawn(player);
+        }
+        finally {
+            Metrics.RESPAWN_LOOKUP.stop(start);
+        }
+    }
+
+    /**
+     * Looks only at the player's own discoveries, which are usually a handful against every station in the world
+     */
+    private Location closestRespawn(final Player player) {
+        World world = player.getWorld();
+        if (!discoveriesReady(player)) {
+            return null;
+        }
+        NewUStation[] mine = discoveries.stations(player, loadedPartitions());
+        NewUStation going = null;
+        if (mine.length > SCAN_LIMIT) {
+            // Found a lot of them, the grid narrows things down faster than going through them all
+            StationPartition partition = partition(world.getName(), world.getType());
+            final int id = PlayerIds.idOf(player.getUUID());
+            if (partition != null) {
+                going = partition.nearest(player.getX(), player.getY(), player.getZ(), -1, new StationGrid.Filter() {
+                    @Override
+                    public boolean accept(NewUStation station) {
+                        return station.hasDiscovered(id);
                     }
+                });
+            }
+        }
+        else {
+            going = closestOf(player, mine);
+            while (going != null && !isCurrent(player, going)) {
+                // Pruned, look again without it
+                mine = discoveries.stations(player, loadedPartitions());
+                going = closestOf(player, mine);
+            }
+        }
+        NewUSettings settings = NewU.cfg.settings();
+        if (going != null && settings.balancing) {
+            going = RespawnBalancer.choose(settings, player, going, mine, new StationGrid.Filter() {
+                @Override
+                public boolean accept(NewUStation station) {
+                    return isCurrent(player, station);
+                }
+            });
+        }
+        if (going == null) {
+            // Nothing discovered in this world, fall back to one discovered in another loaded world
+            for (NewUStation station : mine) {
+                if (isCurrent(player, station)) {
+                    going = station;
+                    break;
                 }
             }
         }
         return going != null ? going.getRespawnLocation() : null;
     }
 
-    NewUStation getClosestStation(Player player) {
-        double distance = -1;
-        NewUStation closest = null;
-
-        synchronized (stations) {
-            for (NewUStation station : stations.values()) {
-                double dist = station.distanceFrom(player);
-                if (distance == -1) {
-                    distance = dist;
-                    closest = station;
+    private static NewUStation closestOf(Player player, NewUStation[] stations) {
+        World world = player.getWorld();
+        double x = player.getX(), y = player.getY(), z = player.getZ();
+        double bestSq = Double.MAX_VALUE;
+        NewUStation best = null;
+        for (NewUStation station : stations) {
+            Location loc = station.getStationLocation();
+            if (loc.getType() == world.getType() && loc.getWorldName().equals(world.getName())) {
+                double dx = loc.getX() - x, dy = loc.getY() - y, dz = loc.getZ() - z;
+                double distSq = dx * dx + dy * dy + dz * dz;
+                if (distSq < bestSq) {
+                    bestSq = distSq;
+                    best = station;
                 }
-                else if (dist < distance) {
-                    distance = dist;
-                    closest = station;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Checks one of the player's stations is still in a loaded world and has not been removed or replaced, pruning it if not
+     */
+    private boolean isCurrent(Player player, NewUStation station) {
+        Location loc = station.getStationLocation();
+        StationPartition partition = partition(loc.getWorldName(), loc.getType());
+        if (partition != null && partition.get(station.getName()) == station) {
+            return true;
+        }
+        discoveries.prune(player.getUUID(), station);
+        return false;
+    }
+
+    /**
+     * Discovers the station the player is standing at, for players who die before walking into its discovery radius
+     *
+     * @return the newly discovered station, or {@code null}
+     */
+    final NewUStation discoverAt(Player player) {
+        NewUStation station = getClosestStation(player.getWorld(), player.getX(), player.getY(), player.getZ(), 10);
+        if (station != null && !hasDiscovered(station, player) && discover(station, player)) {
+            return station;
+        }
+        return null;
+    }
+
+    /**
+     * Drops what is kept for an online player
+     */
+    final void playerLeft(UUID uuid) {
+        discoveriesLoading.remove(uuid);
+        discoveries.evict(uuid);
+        discoveriesLoaded.remove(uuid);
+        storage.playerLeft(uuid);
+    }
+
+    /**
+     * Starts bringing in a joining player's discoveries on the storage thread, for storage that loads them per player
+     * <p/>
+     * Until they are in, {@link #discoveriesReady} turns the player away, so no hook ever waits on storage.
+     */
+    final void playerJoined(final UUID uuid, final String name) {
+        if (!storage.loadsDiscoveriesPerPlayer()) {
+            discoveriesLoaded.add(uuid); // Already in memory with the stations
+            return;
+        }
+        if (discoveriesLoaded.contains(uuid) || !discoveriesLoading.add(uuid)) {
+            return;
+        }
+        storage.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadDiscoveries(uuid, name);
+            }
+        });
+    }
+
+    /**
+     * Checks whether the player's discoveries are in, for hooks to pass over players still waiting on storage
+     * <p/>
+     * A player who was not seen joining, as when NewU is enabled with players online, has theirs started on the way.
+     */
+    final boolean discoveriesReady(Player player) {
+        if (discoveriesLoaded.contains(player.getUUID())) {
+            return true;
+        }
+        playerJoined(player.getUUID(), player.getName());
+        return discoveriesLoaded.contains(player.getUUID());
+    }
+
+    /**
+     * Brings in a player's discoveries, on the storage thread
+     */
+    private void loadDiscoveries(UUID uuid, String name) {
+        if (!discoveriesLoading.contains(uuid)) {
+            return; // Left before it came to this
+        }
+        for (String found : storage.discoveries(uuid, name)) {
+            PartitionKey key = directory.get(found);
+            StationPartition partition = key != null ? partition(key.getWorld(), key.getDimension()) : null;
+            NewUStation station = partition != null ? partition.get(found) : null;
+            if (station != null) {
+                station.addDiscoverer(uuid);
+                discoveries.discovered(uuid, station);
+            }
+            // Otherwise its world is not loaded, and brings the player's discoveries in with it when it is
+        }
+        if (discoveriesLoading.remove(uuid)) {
+            discoveriesLoaded.add(uuid);
+        }
+        else {
+            storage.playerLeft(uuid); // Left while reading, so storage need not keep their discoveries after all
+        }
+    }
+
+    /**
+     * Gets the name of the storage in use, as in storage.backend
+     */
+    final String storageName() {
+        return storage.getName();
+    }
+
+    /**
+     * Gets the number of online players whose discoveries are still on the way in
+     */
+    final int discoveriesLoading() {
+        return discoveriesLoading.size();
+    }
+
+    /**
+     * Gets a station of a loaded world by name
+     */
+    final NewUStation station(String name) {
+        PartitionKey key = directory.get(name);
+        StationPartition partition = key != null ? partition(key.getWorld(), key.getDimension()) : null;
+        return partition != null && partition.isLoaded() ? partition.get(name) : null;
+    }
+
+    /**
+     * Finds the station closest to a point in a loaded world, however far off
+     */
+    final NewUStation nearestStation(String world, DimensionType dimension, double x, double y, double z) {
+        long start = System.nanoTime();
+        StationPartition partition = partition(world, dimension);
+        NewUStation closest = partition != null && partition.isLoaded() ? partition.nearest(x, y, z, -1, null) : null;
+        Metrics.STATION_LOOKUP.stop(start);
+        return closest;
+    }
+
+    /**
+     * Gets the stations of the loaded worlds a player discovered, online or not
+     * <p/>
+     * Goes through every loaded station, and for a player who is offline may read storage as well.
+     */
+    final List<NewUStation> discoveredBy(UUID uuid) {
+        List<NewUStation> found = new ArrayList<NewUStation>();
+        int id = PlayerIds.idOf(uuid);
+        if (id >= 0) {
+            for (StationPartition partition : loadedPartitions()) {
+                for (NewUStation station : partition.stations()) {
+                    if (station.hasDiscovered(id)) {
+                        found.add(station);
+                    }
                 }
             }
         }
-        if (closest != null && closest.distanceFrom(player) > 25) {
-            return null;
+        if (!discoveriesLoaded.contains(uuid)) {
+            // Storage that loads discoveries per player only has those of online players in memory
+            for (String name : storage.storedDiscoveries(uuid)) {
+                NewUStation station = station(name);
+                if (station != null && !station.hasDiscovered(id)) {
+                    found.add(station);
+                }
+            }
         }
+        return found;
+    }
+
+    NewUStation getClosestStation(Player player) {
+        return getClosestStation(player.getWorld(), player.getX(), player.getY(), player.getZ());
+    }
+
+    NewUStation getClosestStation(World world, double x, double y, double z) {
+        return getClosestStation(world, x, y, z, NewU.cfg.settings().discoveryRadius);
+    }
+
+    NewUStation getClosestStation(World world, double x, double y, double z, double radius) {
+        long start = System.nanoTime();
+        StationPartition partition = partition(world.getName(), world.getType());
+        NewUStation closest = partition != null ? partition.nearest(x, y, z, radius, null) : null;
+        Metrics.STATION_LOOKUP.stop(start);
         return closest;
     }
 
-    final String getRandomMessage() {
-        return respawnMessages.get(randy.nextInt(respawnMessages.size()));
+    /**
+     * Records the player as a discoverer of the station
+     *
+     * @return {@code true} if this is a new discovery
+     */
+    final boolean discover(NewUStation station, Player player) {
+        return discoveriesReady(player) && record(station, player.getUUID());
     }
 
-    private ArrayList<String> loadMessages() {
-        ArrayList<String> temp = new ArrayList<String>();
-        Scanner scanner = null;
-        try {
-            JarFile disJar = new JarFile(JarUtils.getJarPath(getClass()));
-            ZipEntry entry = disJar.getEntry("resources/lang/en_US.lang");
-            scanner = new Scanner(disJar.getInputStream(entry));
-            while (scanner.hasNextLine()) {
-                temp.add(scanner.nextLine());
+    /**
+     * Checks whether the player discovered the station, moving a discovery made under the player's pre-UUID name to the UUID
+     * <p/>
+     * The moved discovery is recorded like a new one, so it is journaled, replicated, indexed and heard by listeners,
+     * but it still counts as discovered before rather than new.
+     */
+    final boolean hasDiscovered(NewUStation station, Player player) {
+        if (station.hasDiscovered(PlayerIds.idOf(player.getUUID()))) {
+            return true;
+        }
+        if (!station.isLegacyDiscoverer(player.getName())) {
+            return false;
+        }
+        if (discoveriesReady(player) && station.removeLegacyDiscoverer(player.getName())) {
+            record(station, player.getUUID());
+        }
+        return true;
+    }
+
+    private boolean record(NewUStation station, UUID uuid) {
+        if (!station.addDiscoverer(uuid)) {
+            return false;
+        }
+        discoveries.discovered(uuid, station);
+        Location loc = station.getStationLocation();
+        StationPartition partition = partition(loc.getWorldName(), loc.getType());
+        if (partition != null) { // Otherwise the world unloaded under us and the discovery goes with it
+            storage.stationDiscovered(partition, station, uuid);
+        }
+        if (NewU.replicator != null) {
+            NewU.replicator.stationDiscovered(station, uuid);
+        }
+        if (NewU.stations != null) {
+            NewU.stations.stationDiscovered(station, uuid);
+        }
+        return true;
+    }
+
+    /**
+     * Puts a station added on another server in place, replacing any station of the same name
+     * <p/>
+     * The other server already checked the spacing, and checking again here could leave the servers disagreeing.
+     *
+     * @return {@code false} if the station's world is not loaded here yet
+     */
+    final boolean replicaAdded(NewUStation station) {
+        Location loc = station.getStationLocation();
+        StationPartition partition = partition(loc.getWorldName(), loc.getType());
+        if (partition == null || !partition.isLoaded()) {
+            return false;
+        }
+        NewUStation current = partition.get(station.getName());
+        if (current != null) {
+            Location at = current.getStationLocation();
+            if (at.getX() == loc.getX() && at.getY() == loc.getY() && at.getZ() == loc.getZ()) {
+                return true; // Already here, keep its discoverers
             }
         }
-        catch (Exception ex) {
-            logger.log(Level.SEVERE, "Failed to load reconstruction messages...");
+        unstore(station.getName());
+        if (directory.putIfAbsent(station.getName(), partition.getKey()) != null || !partition.add(station, 0)) {
+            return true; // Set here in the meantime, which makes the local one newer
         }
-        finally {
-            if (scanner != null) {
-                scanner.close();
+        storage.stationAdded(partition, station);
+        queueSpawnRefresh(station);
+        if (NewU.stations != null) {
+            NewU.stations.stationAdded(station);
+        }
+        return true;
+    }
+
+    final void replicaRemoved(String name) {
+        unstore(name);
+    }
+
+    /**
+     * Records a discovery made on another server
+     *
+     * @return {@code false} if the station is not loaded here yet
+     */
+    final boolean replicaDiscovered(String name, UUID uuid) {
+        PartitionKey key = directory.get(name);
+        StationPartition partition = key != null ? partition(key.getWorld(), key.getDimension()) : null;
+        NewUStation station = partition != null && partition.isLoaded() ? partition.get(name) : null;
+        if (station == null) {
+            return false;
+        }
+        if (station.addDiscoverer(uuid)) {
+            discoveries.discovered(uuid, station);
+            storage.stationDiscovered(partition, station, uuid);
+            if (NewU.stations != null) {
+                NewU.stations.stationDiscovered(station, uuid);
             }
         }
-        return temp;
+        return true;
     }
 
-    final boolean storeStations() {
-        boolean failure = false;
-        File stationsJSON = new File(NewU.cfgDir, "stations.json.tmp"); //Store to temp first
-        JsonWriter writer = null;
-        PrintWriter pWriter = null;
-        try {
-            stationsJSON.createNewFile();
-            pWriter = new PrintWriter(stationsJSON);
-            writer = new JsonWriter(pWriter);
-            writer.beginObject(); // Master Object
-            pWriter.println();
-            for (NewUStation station : stations.values()) {
-                pWriter.print("\t");
-                writer.name("Station");
-                writer.beginObject(); // Station object
-                writer.name("Name");
-                writer.value(station.getName());
-                writer.name("Location");
-                writer.beginObject(); // Location Object
-                writer.name("World");
-                Location loc = station.getStationLocation();
-                writer.value(loc.getWorldName());
-                writer.name("Dimension");
-                writer.value(loc.getType().getName());
-                writer.name("X");
-                writer.value(loc.getBlockX());
-                writer.name("Y");
-                writer.value(loc.getBlockY());
-                writer.name("Z");
-                writer.value(loc.getBlockZ());
-                writer.endObject(); // End Location
-                writer.name("Discoverers");
-                writer.beginArray(); // Discoverers Array
-                for (String discoverer : station.discoverers()) {
-                    writer.value(discoverer);
+    /**
+     * Brings a world's stations in on the persistence thread
+     * <p/>
+     * The partition is registered straight away but ignored by queries until the load finishes.
+     */
+    final void worldLoaded(World world) {
+        final StationPartition partition = register(world.getName(), world.getType());
+        if (partition != null) {
+            storage.execute(new Runnable() {
+                @Override
+                public void run() {
+                    load(partition);
                 }
-                writer.endArray(); // End Discoverers
-                writer.endObject(); // End Station
-                pWriter.println();
-            }
-            writer.endObject(); // End Master
+            });
         }
-        catch (Exception ex) {
-            logger.log(Level.SEVERE, "Failed to store stations...");
-            failure = true;
+    }
+
+    /**
+     * Drops a world's stations from memory once anything unwritten has been flushed
+     */
+    final void worldUnloaded(World world) {
+        ConcurrentHashMap<DimensionType, StationPartition> dimensions = partitions.get(world.getName());
+        StationPartition partition = dimensions != null ? dimensions.remove(world.getType()) : null;
+        if (partition != null) {
+            storage.unload(partition);
+            if (NewU.stations != null) {
+                NewU.stations.worldChanged();
+            }
         }
-        finally {
-            try {
-                if (writer != null)
-                    writer.close();
+    }
+
+    private StationPartition partition(String world, DimensionType dimension) {
+        ConcurrentHashMap<DimensionType, StationPartition> dimensions = partitions.get(world);
+        return dimensions != null ? dimensions.get(dimension) : null;
+    }
+
+    /**
+     * Registers an empty partition for the world
+     *
+     * @return the new partition, or {@code null} if one was already registered
+     */
+    private StationPartition register(String world, DimensionType dimension) {
+        ConcurrentHashMap<DimensionType, StationPartition> dimensions = partitions.get(world);
+        if (dimensions == null) {
+            ConcurrentHashMap<DimensionType, StationPartition> created = new ConcurrentHashMap<DimensionType, StationPartition>();
+            dimensions = partitions.putIfAbsent(world, created);
+            if (dimensions == null) {
+                dimensions = created;
             }
-            catch (IOException ioex) {
-                //IGNORED
+        }
+        StationPartition partition = new StationPartition(new PartitionKey(world, dimension), stationsDir);
+        return dimensions.putIfAbsent(dimension, partition) == null ? partition : null;
+    }
+
+    /**
+     * Loads a partition and brings the name directory in line with what it actually holds
+     */
+    private void load(StationPartition partition) {
+        storage.load(partition);
+        loaded(partition);
+    }
+
+    private void loaded(StationPartition partition) {
+        PartitionKey key = partition.getKey();
+        boolean changed = false;
+        for (NewUStation station : partition.stations()) {
+            changed |= directory.putIfAbsent(station.getName(), key) == null;
+        }
+        for (Map.Entry<String, PartitionKey> entry : directory.entrySet()) {
+            if (entry.getValue().equals(key) && partition.get(entry.getKey()) == null) {
+                changed |= directory.remove(entry.getKey(), key);
             }
-            if (pWriter != null)
-                pWriter.close();
         }
-        if (!failure) {
-            failure = !stationsJSON.renameTo(new File(NewU.cfgDir, "stations.json"));
+        if (changed) {
+            storage.markIndexDirty();
+        }
+        discoveries.loaded(partition);
+        for (NewUStation station : partition.stations()) {
+            queueSpawnRefresh(station);
+        }
+        if (NewU.stations != null) {
+            NewU.stations.worldChanged();
         }
+    }
 
-        return !failure;
+    /**
+     * Notes a block change, refreshing the spawn spots of a station close enough to be affected
+     */
+    final void blockChanged(World world, int x, int y, int z) {
+        NewUStation station = getClosestStation(world, x, y, z, SpawnPool.REACH);
+        if (station != null) {
+            queueSpawnRefresh(station);
+        }
     }
 
-    private void loadStations() {
-        try {
-            File stationsJSON = new File(NewU.cfgDir, "stations.json");
-            if (!stationsJSON.exists()) {
-                stationsJSON.createNewFile();
-                return;
+    private static void queueSpawnRefresh(NewUStation station) {
+        if (NewU.spawnRefresher != null) {
+            NewU.spawnRefresher.enqueue(station);
+        }
+    }
+
+    final Collection<StationPartition> loadedPartitions() {
+        ArrayList<StationPartition> loaded = new ArrayList<StationPartition>();
+        for (ConcurrentHashMap<DimensionType, StationPartition> dimensions : partitions.values()) {
+            for (StationPartition partition : dimensions.values()) {
+                if (partition.isLoaded()) {
+                    loaded.add(partition);
+                }
             }
+        }
+        return loaded;
+    }
 
-            JsonReader reader = new JsonReader(new FileReader(stationsJSON));
-            reader.beginObject(); // Begin main object
-            while (reader.hasNext()) {
-                String name = reader.nextName();
-                if (name.equals("Station")) {
-                    NewUStation temp = null;
-                    reader.beginObject(); // Begin Station
-                    String foundName = null;
-                    while (reader.hasNext()) {
-                        name = reader.nextName();
-                        if (name.equals("Name")) {
-                            foundName = reader.nextString();
-                            continue;
-                        }
-                        else if (name.equals("Location")) {
-                            reader.beginObject(); // Begin Location
-                            temp = new NewUStation(foundName, reader); // Pass reader into NewUStation object for parsing
-                            reader.endObject(); // End Location
-                        }
-                        else if (name.equals("Discoverers")) {
-                            reader.beginArray(); // Begin Discoverers
-                            while (reader.hasNext()) {
-                                if (temp != null) {
-                                    temp.addDiscoverer(reader.nextString());
-                                }
-                            }
-                            reader.endArray(); // End Discoverers
-                        }
-                        else {
-                            reader.skipValue(); // UNKNOWN THING
-                        }
-                    }
-                    if (temp != null) {
-                        stations.put(temp.getName(), temp);
-                    }
-                    reader.endObject(); //End Station
+    /**
+     * Gets the number of players whose discoveries are kept for quick respawn lookups
+     */
+    final int indexedPlayers() {
+        return discoveries.size();
+    }
+
+    final Map<String, PartitionKey> directory() {
+        return directory;
+    }
+
+    final StationMessages messages() {
+        return messages;
+    }
+
+    /**
+     * Writes a copy of the loaded worlds' stations in the given format alongside the live snapshots, without blocking the caller
+     */
+    final void export(SnapshotFormat format) {
+        storage.export(format);
+    }
+
+    /**
+     * Writes the stations of the loaded worlds to a CSV or JSON file
+     *
+     * @return the number of stations written
+     */
+    final int exportStations(File file) throws IOException {
+        return StationTransfer.write(file, loadedPartitions());
+    }
+
+    /**
+     * Gets the number of station changes waiting on the background writer
+     */
+    final long backlog() {
+        return storage.backlog();
+    }
+
+    /**
+     * Flushes anything waiting on the background writer and stops it
+     */
+    final void shutdown() {
+        storage.shutdown();
+    }
+
+    /**
+     * Reads which partition every station lives in
+     */
+    private void loadIndex() {
+        directory.putAll(storage.readIndex());
+    }
+    /**
+     * Splits the single stations file and journal of older versions into per-world partitions
+     */
+    private void migrateLegacy() {
+        final HashMap<PartitionKey, StationPartition> migrated = new HashMap<PartitionKey, StationPartition>();
+        StationSink router = new StationSink() {
+            @Override
+            public void restoreStation(NewUStation station) {
+                Location loc = station.getStationLocation();
+                PartitionKey key = new PartitionKey(loc.getWorldName(), loc.getType());
+                StationPartition partition = migrated.get(key);
+                if (partition == null) {
+                    partition = new StationPartition(key, stationsDir);
+                    migrated.put(key, partition);
                 }
+                restoreRemoval(station.getName()); // May have moved worlds
+                partition.restoreStation(station);
+                directory.put(station.getName(), key);
             }
 
-            reader.endObject(); // End main object
-            reader.close();
+            @Override
+            public void restoreRemoval(String name) {
+                PartitionKey key = directory.remove(name);
+                if (key != null) {
+                    migrated.get(key).restoreRemoval(name);
+                }
+            }
+
+            @Override
+            public void restoreDiscovery(String name, String discoverer) {
+                PartitionKey key = directory.get(name);
+                if (key != null) {
+                    migrated.get(key).restoreDiscovery(name, discoverer);
+                }
+            }
+        };
+        ArrayList<File> legacy = new ArrayList<File>();
+        File snapshot = null;
+        SnapshotFormat snapshotFormat = null;
+        for (SnapshotFormat format : FORMATS.values()) {
+            File file = new File(NewU.cfgDir, "stations".concat(format.extension()));
+            if (file.exists()) {
+                legacy.add(file);
+                if (snapshot == null || file.lastModified() > snapshot.lastModified()) {
+                    snapshot = file;
+                    snapshotFormat = format;
+                }
+            }
+        }
+        File journalFile = new File(NewU.cfgDir, "stations.journal");
+        if (journalFile.exists()) {
+            legacy.add(journalFile);
         }
-        catch (IOException e) {
-            logger.log(Level.SEVERE, "Failed to load stations...");
+        if (legacy.isEmpty()) {
+            return; // Fresh install
         }
+        try {
+            int generation = 0;
+            if (snapshot != null && snapshot.length() > 0) {
+                generation = snapshotFormat.read(snapshot, router);
+            }
+            new StationJournal(journalFile).replay(router, generation);
+        }
+        catch (Exception ex) {
+            logger.log(Level.WARNING, "Problem reading old station files, migrating what could be read...", ex);
+        }
+        for (StationPartition partition : migrated.values()) {
+            partition.setLoaded();
+            storage.storeAll(partition);
+        }
+        storage.storeIndex();
+        for (File file : legacy) {
+            if (!file.renameTo(new File(file.getPath().concat(".migrated")))) {
+                logger.warning("Failed to rename " + file.getName() + " after migrating it, it can be removed by hand");
+            }
+        }
+        logger.info("Migrated " + directory.size() + " stations from " + migrated.size() + " worlds into " + storage.getName() + " storage");
+    }
+
+    /**
+     * Gets a snapshot format by name
+     *
+     * @return the format or {@code null} if unknown
+     */
+    static SnapshotFormat snapshotFormat(String name) {
+        return FORMATS.get(name.toLowerCase());
+    }
+
+    static Collection<SnapshotFormat> snapshotFormats() {
+        return FORMATS.values();
     }
 }
@@ -0,0 +1,283 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import net.canarymod.api.world.DimensionType;
+import net.canarymod.api.world.position.Location;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Reads and writes batches of stations for /newu import and /newu export
+ * <p/>
+ * CSV files hold one station per line as {@code name,world,dimension,x,y,z}, with an optional header line and {@code #} comments.
+ * JSON files hold an array of objects with the fields Name, World, Dimension, X, Y and Z.
+ * Coordinates are block coordinates, stations are centered on the block like /newu set does.
+ * Files are streamed, so neither side holds more than the stations themselves.
+ *
+ * @author Jason (darkdiplomat)
+ */
+final class StationTransfer {
+    private static final String CHARSET = "UTF-8";
+    private static final String HEADER = "name,world,dimension,x,y,z";
+
+    private StationTransfer() {
+    }
+
+    /**
+     * Resolves a file name given to a command against the config directory
+     *
+     * @return the file, or {@code null} if the name is not a plain .csv or .json file name
+     */
+    static File file(String name) {
+        if (name.contains("/") || name.contains("\\") || name.startsWith(".") || !(name.endsWith(".csv") || name.endsWith(".json"))) {
+            return null;
+        }
+        return new File(NewU.cfgDir, name);
+    }
+
+    /**
+     * Reads every station in the file
+     *
+     * @param problems
+     *         receives a description of every entry that could not be read, the others are still returned
+     */
+    static List<NewUStation> read(File file, List<String> problems) throws IOException {
+        List<NewUStation> stations = new ArrayList<NewUStation>();
+        if (file.getName().endsWith(".json")) {
+            readJson(file, stations, problems);
+        }
+        else {
+            readCsv(file, stations, problems);
+        }
+        return stations;
+    }
+
+    /**
+     * Writes the stations to the file
+     *
+     * @return the number of stations written
+     */
+    static int write(File file, Collection<StationPartition> partitions) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), CHARSET));
+        int count = 0;
+        try {
+            if (file.getName().endsWith(".json")) {
+                JsonWriter writer = new JsonWriter(out);
+                writer.setIndent("  ");
+                writer.beginArray();
+                for (StationPartition partition : partitions) {
+                    for (NewUStation station : partition.stations()) {
+                        Location loc = station.getStationLocation();
+                        writer.beginObject();
+                        writer.name("Name").value(station.getName());
+                        writer.name("World").value(loc.getWorldName());
+                        writer.name("Dimension").value(loc.getType().getName());
+                        writer.name("X").value(loc.getBlockX());
+                        writer.name("Y").value(loc.getBlockY());
+                        writer.name("Z").value(loc.getBlockZ());
+                        writer.endObject();
+                        count++;
+                    }
+                }
+                writer.endArray();
+                writer.flush();
+            }
+            else {
+                out.write(HEADER);
+                out.write('\n');
+                for (StationPartition partition : partitions) {
+                    for (NewUStation station : partition.stations()) {
+                        Location loc = station.getStationLocation();
+                        out.write(csvField(station.getName()));
+                        out.write(',');
+                        out.write(csvField(loc.getWorldName()));
+                        out.write(',');
+                        out.write(loc.getType().getName());
+                        out.write(',' + String.valueOf(loc.getBlockX()) + ',' + loc.getBlockY() + ',' + loc.getBlockZ() + '\n');
+                        count++;
+                    }
+                }
+            }
+        }
+        finally {
+            out.close();
+        }
+        return count;
+    }
+
+    private static void readCsv(File file, List<NewUStation> stations, List<String> problems) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+        try {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#") || (number == 1 && line.equalsIgnoreCase(HEADER))) {
+                    continue;
+                }
+                List<String> fields = csvFields(line);
+                if (fields.size() != 6) {
+                    problems.add("Line " + number + ": expected 6 fields, found " + fields.size());
+                    continue;
+                }
+                try {
+                    NewUStation station = station("Line " + number, fields.get(0), fields.get(1), fields.get(2), Integer.parseInt(fields.get(3).trim()), Integer.parseInt(fields.get(4).trim()), Integer.parseInt(fields.get(5).trim()), problems);
+                    if (station != null) {
+                        stations.add(station);
+                    }
+                }
+                catch (NumberFormatException nfex) {
+                    problems.add("Line " + number + ": coordinates must be whole numbers");
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    private static void readJson(File file, List<NewUStation> stations, List<String> problems) throws IOException {
+        JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET)));
+        try {
+            int number = 0;
+            reader.beginArray();
+            while (reader.hasNext()) {
+                number++;
+                String name = null, world = null, dimension = null;
+                Integer x = null, y = null, z = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String field = reader.nextName();
+                    if (reader.peek() == JsonToken.NULL) {
+                        reader.nextNull();
+                    }
+                    else if (field.equals("Name")) {
+                        name = reader.nextString();
+                    }
+                    else if (field.equals("World")) {
+                        world = reader.nextString();
+                    }
+                    else if (field.equals("Dimension")) {
+                        dimension = reader.nextString();
+                    }
+                    else if (field.equals("X")) {
+                        x = reader.nextInt();
+                    }
+                    else if (field.equals("Y")) {
+                        y = reader.nextInt();
+                    }
+                    else if (field.equals("Z")) {
+                        z = reader.nextInt();
+                    }
+                    else {
+                        reader.skipValue(); // Unknown
+                    }
+                }
+                reader.endObject();
+                if (name == null || world == null || dimension == null || x == null || y == null || z == null) {
+                    problems.add("Entry " + number + ": needs Name, World, Dimension, X, Y and Z");
+                    continue;
+                }
+                NewUStation station = station("Entry " + number, name, world, dimension, x, y, z, problems);
+                if (station != null) {
+                    stations.add(station);
+                }
+            }
+            reader.endArray();
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    private static NewUStation station(String entry, String name, String world, String dimension, int x, int y, int z, List<String> problems) {
+        name = name.trim();
+        if (name.isEmpty() || name.contains(" ")) {
+            problems.add(entry + ": '" + name + "' is not a usable station name");
+            return null;
+        }
+        DimensionType type = DimensionType.fromName(dimension.trim());
+        if (type == null) {
+            problems.add(entry + ": unknown dimension '" + dimension.trim() + "'");
+            return null;
+        }
+        Location location = new Location(x, y, z);
+        location.setWorldName(world.trim());
+        location.setType(type);
+        return new NewUStation(name, location);
+    }
+
+    /**
+     * Splits a CSV line, fields may be quoted with doubled quotes inside
+     */
+    private static List<String> csvFields(String line) {
+        List<String> fields = new ArrayList<String>(6);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int index = 0; index < line.length(); index++) {
+            char next = line.charAt(index);
+            if (quoted) {
+                if (next == '"' && index + 1 < line.length() && line.charAt(index + 1) == '"') {
+                    field.append('"');
+                    index++;
+                }
+                else if (next == '"') {
+                    quoted = false;
+                }
+                else {
+                    field.append(next);
+                }
+            }
+            else if (next == '"') {
+                quoted = true;
+            }
+            else if (next == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            }
+            else {
+                field.append(next);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static String csvField(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
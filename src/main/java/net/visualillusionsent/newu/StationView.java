@@ -0,0 +1,99 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+import net.canarymod.api.world.DimensionType;
+import net.canarymod.api.world.position.Location;
+
+/**
+ * A NewU station as other plugins see it, fixed at the time it was handed out
+ *
+ * @author Jason (darkdiplomat)
+ */
+public final class StationView {
+    private final String name;
+    private final String world;
+    private final DimensionType dimension;
+    private final double x, y, z;
+
+    StationView(NewUStation station) {
+        Location loc = station.getStationLocation();
+        this.name = station.getName();
+        this.world = loc.getWorldName();
+        this.dimension = loc.getType();
+        this.x = loc.getX();
+        this.y = loc.getY();
+        this.z = loc.getZ();
+    }
+
+    public final String getName() {
+        return name;
+    }
+
+    public final String getWorldName() {
+        return world;
+    }
+
+    public final DimensionType getDimension() {
+        return dimension;
+    }
+
+    public final double getX() {
+        return x;
+    }
+
+    public final double getY() {
+        return y;
+    }
+
+    public final double getZ() {
+        return z;
+    }
+
+    /**
+     * Gets a new location at the station, free to change
+     */
+    public final Location getLocation() {
+        Location location = new Location(x, y, z);
+        location.setWorldName(world);
+        location.setType(dimension);
+        return location;
+    }
+
+    /**
+     * Views are equal when they show the same station at the same place
+     */
+    @Override
+    public final boolean equals(Object obj) {
+        if (!(obj instanceof StationView)) {
+            return false;
+        }
+        StationView other = (StationView) obj;
+        return name.equals(other.name) && world.equals(other.world) && dimension == other.dimension && x == other.x && y == other.y && z == other.z;
+    }
+
+    @Override
+    public final int hashCode() {
+        return name.hashCode();
+    }
+
+    @Override
+    public final String toString() {
+        return String.format("%s (%s %s X:%.2f;Y:%.2f;Z:%.2f)", name, world, dimension.getName(), x, y, z);
+    }
+}
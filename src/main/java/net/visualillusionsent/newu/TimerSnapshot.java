@@ -0,0 +1,63 @@
+/*
+ * This file is part of NewU.
+ *
+ * Copyright © 2014-2014 Visual Illusions Entertainment
+ *
+ * NewU is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License v3 as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License v3 for more details.
+ *
+ * You should have received a copy of the GNU General Public License v3 along with this program.
+ * If not, see http://www.gnu.org/licenses/gpl.html.
+ */
+package net.visualillusionsent.newu;
+
+/**
+ * Point in time view of a {@link LatencyTimer}, in nanoseconds
+ * <p/>
+ * Public so JMX can open it up as composite data.
+ *
+ * @author Jason (darkdiplomat)
+ */
+public final class TimerSnapshot {
+    private final String name;
+    private final long count, p50, p99, max;
+
+    TimerSnapshot(String name, long count, long p50, long p99, long max) {
+        this.name = name;
+        this.count = count;
+        this.p50 = p50;
+        this.p99 = p99;
+        this.max = max;
+    }
+
+    public final String getName() {
+        return name;
+    }
+
+    public final long getCount() {
+        return count;
+    }
+
+    public final long getP50Nanos() {
+        return p50;
+    }
+
+    public final long getP99Nanos() {
+        return p99;
+    }
+
+    public final long getMaxNanos() {
+        return max;
+    }
+
+    @Override
+    public final String toString() {
+        return String.format("%s: %d calls, p50 %.1fus, p99 %.1fus, max %.1fus", name, count, p50 / 1000D, p99 / 1000D, max / 1000D);
+    }
+}
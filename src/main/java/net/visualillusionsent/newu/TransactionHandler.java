@@ -17,82 +17,89 @@
  */
 package net.visualillusionsent.newu;
 
-import com.greatmancode.craftconomy3.Cause;
-import com.greatmancode.craftconomy3.Common;
-import com.greatmancode.craftconomy3.account.Account;
-import com.greatmancode.craftconomy3.account.AccountManager;
-import com.greatmancode.craftconomy3.currency.CurrencyManager;
 import net.canarymod.api.entity.living.humanoid.Player;
-import net.visualillusionsent.dconomy.accounting.AccountNotFoundException;
-import net.visualillusionsent.dconomy.accounting.AccountingException;
-import net.visualillusionsent.dconomy.api.InvalidPluginException;
+import net.canarymod.api.world.World;
 
-import static net.visualillusionsent.dconomy.api.account.wallet.WalletAPIListener.*;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Jason (darkdiplomat)
  */
 final class TransactionHandler {
+    private static final BalanceCache balances = new BalanceCache();
+    // Balance lookups the old hasAmount/percentage/charge sequence would have made that a quote now answers
+    private static final AtomicLong reused = new AtomicLong();
 
-    static boolean hasAmount(Player player) {
-        return percentage(player) >= 0.50;
+    /**
+     * Works out the respawn fee from the player's balance in their current world
+     */
+    static FeeQuote quote(Player player) {
+        World world = player.getWorld();
+        FeeQuote quote = new FeeQuote(player.getUUID(), world.getName(), world.getFqName(), balance(player, world.getName()) * NewU.cfg.settings().chargePercent);
+        if (quote.isPayable()) {
+            reused.incrementAndGet(); // Amount shown without a second lookup
+        }
+        return quote;
     }
 
-    static double percentage(Player player) {
-        switch (NewU.ecoSystem) {
-            case DCONOMY:
-                try {
-                    return walletBalance(player.getUUID(), false) * NewU.cfg.chargePercent();
-                }
-                catch (AccountingException e) {
-                    // Ignored
-                }
-                catch (AccountNotFoundException e) {
-                    // Ignored
-                }
-            case CRAFTCONOMY:
-                AccountManager accountManager = Common.getInstance().getAccountManager();
-                CurrencyManager currencyManager = Common.getInstance().getCurrencyManager();
-
-                if (accountManager.exist(player.getName())) {
-                    Account pAcc = accountManager.getAccount(player.getName());
-                    return pAcc.getBalance(player.getWorld().getName(), currencyManager.getDefaultCurrency().getName()) * NewU.cfg.chargePercent();
-                }
+    private static double balance(Player player, String world) {
+        double balance = balances.get(player.getUUID(), world);
+        if (Double.isNaN(balance)) {
+            long start = System.nanoTime();
+            try {
+                balance = NewU.economy.balance(player.getUUID(), player.getName(), world);
+            }
+            finally {
+                Metrics.ECONOMY_BALANCE.stop(start);
+            }
+            balances.put(player.getUUID(), world, balance, NewU.cfg.settings().balanceCacheTTL);
         }
-        return 0;
+        return balance;
     }
 
-    static double charge(Player player) {
-        if (hasAmount(player)) {
-            double debit = percentage(player);
-            switch (NewU.ecoSystem) {
-                case DCONOMY:
-                    try {
-                        testWalletDebit(player.getUUID(), debit);
-                        walletDebit("NewU", player.getName(), debit, false);
-                        return debit;
-                    }
-                    catch (AccountingException aex) {
-                        // Ignored
-                    }
-                    catch (AccountNotFoundException anfex) {
-                        // Ignored
-                    }
-                    catch (InvalidPluginException e) {
-                        // Ignored
-                    }
-                    return 0;
-                case CRAFTCONOMY:
-                    AccountManager accountManager = Common.getInstance().getAccountManager();
-                    CurrencyManager currencyManager = Common.getInstance().getCurrencyManager();
+    /**
+     * Hands a quoted fee to the settlement queue, the economy plugin is not called on this thread
+     */
+    static void charge(Player player, FeeQuote quote) {
+        reused.addAndGet(quote.isPayable() ? 2 : 1);
+        NewU.settlements.submit(player, quote);
+    }
 
-                    if (accountManager.exist(player.getName())) {
-                        Account pAcc = accountManager.getAccount(player.getName());
-                        pAcc.withdraw(debit, player.getWorld().getFqName(), currencyManager.getDefaultCurrency().getName(), Cause.PLUGIN, "NewU Respawn Fee");
-                        return debit;
-                    }
-            }
+    /**
+     * Takes money from a player's account
+     * <p/>
+     * Called from the settlement thread. Runtime exceptions from the economy plugin are left to the caller, which asks the provider whether to retry.
+     */
+    static DebitResult debit(UUID uuid, String name, String worldFqName, double amount) {
+        long start = System.nanoTime();
+        try {
+            return NewU.economy.debit(uuid, name, worldFqName, amount) ? DebitResult.DONE : DebitResult.FAILED;
         }
-        return 0;
+        finally {
+            Metrics.ECONOMY_DEBIT.stop(start);
+        }
+    }
+
+    /** Drops anything cached for a player who left */
+    static void forget(UUID uuid) {
+        balances.invalidate(uuid);
+    }
+
+    /** Balance lookups that went to the economy plugin */
+    static long backendCalls() {
+        return balances.misses();
+    }
+
+    /** Balance lookups avoided, by the cache or by reusing a quote */
+    static long savedCalls() {
+        return balances.hits() + reused.get();
+    }
+
+    /** Outcome of a debit, RETRY only for what the economy provider marks as retryable */
+    enum DebitResult {
+        DONE,
+        FAILED,
+        RETRY
     }
 }